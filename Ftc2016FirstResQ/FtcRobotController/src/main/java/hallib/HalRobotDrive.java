@@ -1,5 +1,8 @@
 package hallib;
 
+import trclib.TrcDriveKinematics;
+import trclib.TrcVoltageCompensator;
+
 public class HalRobotDrive
 {
     public static class MotorType
@@ -22,12 +25,32 @@ public class HalRobotDrive
         }   //MotorType
     }   //class MotorType
 
+    //
+    // How to bring wheel powers back within range when a command asks for
+    // more than a wheel can give. Each wheel's power is a translation part
+    // plus a rotation part:
+    // - PROPORTIONAL: scale all the wheels down by the same factor; both
+    //   the direction and the turn ratio are kept, but everything slows.
+    // - PRESERVE_ROTATION: give the rotation all it asks for and scale the
+    //   translation down to fit, so a heading correction is never washed
+    //   out by a saturating drive command.
+    // - PRESERVE_TRANSLATION: the other way around, keep the translation
+    //   (speed and direction) and give up rotation first.
+    //
+    public enum DesaturationMode
+    {
+        PROPORTIONAL,
+        PRESERVE_ROTATION,
+        PRESERVE_TRANSLATION
+    }   //enum DesaturationMode
+
     public static double kDefaultSensitivity = 0.5;
     public static double kDefaultMaxOutput = 1.0;
 
     private static double MOTOR_MAX_VALUE = 1.0;
     private static double MOTOR_MIN_VALUE = -1.0;
     private static int MAX_NUM_MOTORS = 4;
+    private static double MAX_SLEW_PERIOD = 0.1;
 
     private double sensitivity;
     private double maxOutput;
@@ -36,6 +59,41 @@ public class HalRobotDrive
     private HalSpeedController frontRightMotor;
     private HalSpeedController rearLeftMotor;
     private HalSpeedController rearRightMotor;
+    //
+    // Scratch buffer reused by the mecanum kinematics, so driving doesn't
+    // allocate every tick.
+    //
+    private final double[] wheelSpeeds = new double[MAX_NUM_MOTORS];
+    private final double[] translationSpeeds = new double[MAX_NUM_MOTORS];
+    private final double[] rotationSpeeds = new double[MAX_NUM_MOTORS];
+    //
+    // Any other drivetrain is driven through a wheel matrix, one motor
+    // per wheel in the same order as the matrix rows.
+    //
+    private TrcDriveKinematics kinematics = null;
+    private HalSpeedController[] wheelMotors = null;
+    private double[] kinematicSpeeds = null;
+    private double[] kinematicTranslation = null;
+    private double[] kinematicRotation = null;
+    //
+    // Null keeps each drive mode's original behavior: arcadeDrive's own
+    // clipping (which keeps the turn) and proportional for the rest.
+    //
+    private DesaturationMode desaturationMode = null;
+    //
+    // Every drive mode ends up writing outputMotors (front left, front
+    // right, rear left, rear right, or wheelMotors) through
+    // setWheelPowers, which is where slew rate limiting happens.
+    //
+    private HalSpeedController[] outputMotors;
+    private double[] prevPowers;
+    private double accelRate = 0.0;
+    private double decelRate = 0.0;
+    private double slewPrevTime = 0.0;
+    private double slewDeficit = 0.0;
+    private double totalSlewDeficit = 0.0;
+    private int slewLimitedCount = 0;
+    private TrcVoltageCompensator voltageCompensator = null;
 
     private void robotDriveInit(
             HalSpeedController frontLeftMotor,
@@ -56,6 +114,21 @@ public class HalRobotDrive
         this.rearRightMotor = rearRightMotor;
         if (rearRightMotor != null) numMotors++;
 
+        if (wheelMotors != null)
+        {
+            outputMotors = wheelMotors;
+            numMotors = wheelMotors.length;
+        }
+        else
+        {
+            outputMotors = new HalSpeedController[MAX_NUM_MOTORS];
+            outputMotors[MotorType.kFrontLeft_val] = frontLeftMotor;
+            outputMotors[MotorType.kFrontRight_val] = frontRightMotor;
+            outputMotors[MotorType.kRearLeft_val] = rearLeftMotor;
+            outputMotors[MotorType.kRearRight_val] = rearRightMotor;
+        }
+        prevPowers = new double[outputMotors.length];
+
         stopMotor();
     }   //robotDriveInit
 
@@ -86,6 +159,41 @@ public class HalRobotDrive
         robotDriveInit(null, leftMotor, null, rightMotor);
     }   //HalRobotDrive
 
+    public HalRobotDrive(
+            TrcDriveKinematics kinematics, HalSpeedController... motors)
+    {
+        if (kinematics == null || motors == null)
+        {
+            throw new NullPointerException("Null kinematics or motors provided");
+        }
+
+        if (motors.length != kinematics.getNumWheels())
+        {
+            throw new IllegalArgumentException(
+                    "Need one motor per wheel of the kinematics");
+        }
+
+        for (int i = 0; i < motors.length; i++)
+        {
+            if (motors[i] == null)
+            {
+                throw new NullPointerException("Null motor provided");
+            }
+        }
+
+        this.kinematics = kinematics;
+        wheelMotors = motors.clone();
+        kinematicSpeeds = new double[motors.length];
+        kinematicTranslation = new double[motors.length];
+        kinematicRotation = new double[motors.length];
+        robotDriveInit(null, null, null, null);
+    }   //HalRobotDrive
+
+    public TrcDriveKinematics getKinematics()
+    {
+        return kinematics;
+    }   //getKinematics
+
     public void drive(double magnitude, double curve)
     {
         double leftOutput;
@@ -123,12 +231,81 @@ public class HalRobotDrive
 
     public void stopMotor()
     {
-        if (frontLeftMotor != null) frontLeftMotor.setPower(0.0);
-        if (frontRightMotor != null) frontRightMotor.setPower(0.0);
-        if (rearLeftMotor != null) rearLeftMotor.setPower(0.0);
-        if (rearRightMotor != null) rearRightMotor.setPower(0.0);
+        //
+        // Stopping is never slew limited.
+        //
+        for (int i = 0; i < outputMotors.length; i++)
+        {
+            if (outputMotors[i] != null) outputMotors[i].setPower(0.0);
+            prevPowers[i] = 0.0;
+        }
     }   //stopMotor
 
+    public void setSlewRateLimit(double accelRate, double decelRate)
+    {
+        //
+        // Limits how fast wheel powers may change, in power per second,
+        // separately for speeding up and slowing down (including through
+        // a reversal). When a wheel would change faster, the changes of
+        // all the wheels are scaled back together so the robot keeps the
+        // direction it was commanded, just gets there more gently. A rate
+        // of zero means unlimited.
+        //
+        if (accelRate < 0.0 || decelRate < 0.0)
+        {
+            throw new IllegalArgumentException("Slew rates must not be negative");
+        }
+        this.accelRate = accelRate;
+        this.decelRate = decelRate;
+        slewPrevTime = HalTimer.getCurrentTime();
+    }   //setSlewRateLimit
+
+    public void setDesaturationMode(DesaturationMode mode)
+    {
+        desaturationMode = mode;
+    }   //setDesaturationMode
+
+    public DesaturationMode getDesaturationMode()
+    {
+        return desaturationMode;
+    }   //getDesaturationMode
+
+    public void setVoltageCompensation(TrcVoltageCompensator compensator)
+    {
+        //
+        // Scale wheel powers to the compensator's nominal battery voltage
+        // on their way to the motors. Slew limiting and normalization still
+        // work on the uncompensated powers. Null turns it off.
+        //
+        voltageCompensator = compensator;
+    }   //setVoltageCompensation
+
+    public double getSlewDeficit()
+    {
+        //
+        // Largest difference between a commanded and an applied wheel
+        // power in the last command, zero if it wasn't limited.
+        //
+        return slewDeficit;
+    }   //getSlewDeficit
+
+    public double getTotalSlewDeficit()
+    {
+        return totalSlewDeficit;
+    }   //getTotalSlewDeficit
+
+    public int getSlewLimitedCount()
+    {
+        return slewLimitedCount;
+    }   //getSlewLimitedCount
+
+    public void resetSlewStats()
+    {
+        slewDeficit = 0.0;
+        totalSlewDeficit = 0.0;
+        slewLimitedCount = 0;
+    }   //resetSlewStats
+
     public void setSensitivity(double sensitivity)
     {
         this.sensitivity = sensitivity;
@@ -146,35 +323,29 @@ public class HalRobotDrive
 
     public void setInvertedMotor(MotorType motorType, boolean isInverted)
     {
-        switch (motorType.value)
+        if (kinematics != null)
         {
-            case MotorType.kFrontLeft_val:
-                if (frontLeftMotor != null)
-                {
-                    frontLeftMotor.setInverted(isInverted);
-                }
-                break;
+            throw new IllegalStateException(
+                    "Kinematics drive motors are inverted by wheel index");
+        }
 
-            case MotorType.kFrontRight_val:
-                if (frontRightMotor != null)
-                {
-                    frontRightMotor.setInverted(isInverted);
-                }
-                break;
+        setInvertedMotor(motorType.value, isInverted);
+    }   //setInvertedMotor
 
-            case MotorType.kRearLeft_val:
-                if (rearLeftMotor != null)
-                {
-                    rearLeftMotor.setInverted(isInverted);
-                }
-                break;
+    public void setInvertedMotor(int wheel, boolean isInverted)
+    {
+        //
+        // The wheel is the row in the kinematics' wheel matrix, or the
+        // MotorType value for the fixed layouts.
+        //
+        if (wheel < 0 || wheel >= outputMotors.length)
+        {
+            throw new IllegalArgumentException("Invalid wheel index");
+        }
 
-            case MotorType.kRearRight_val:
-                if (rearRightMotor != null)
-                {
-                    rearRightMotor.setInverted(isInverted);
-                }
-                break;
+        if (outputMotors[wheel] != null)
+        {
+            outputMotors[wheel].setInverted(isInverted);
         }
     }   //setInvertedMotor
 
@@ -183,25 +354,22 @@ public class HalRobotDrive
         leftPower = limit(leftPower);
         rightPower = limit(rightPower);
 
-        if (frontLeftMotor != null)
-        {
-            frontLeftMotor.setPower(leftPower);
-        }
-
-        if (frontRightMotor != null)
-        {
-            frontRightMotor.setPower(rightPower);
-        }
-
-        if (rearLeftMotor != null)
+        if (kinematics != null)
         {
-            rearLeftMotor.setPower(leftPower);
+            //
+            // left = drive + turn, right = drive - turn.
+            //
+            kinematicDrive(
+                    0.0, (leftPower + rightPower)/2.0,
+                    (leftPower - rightPower)/2.0);
+            return;
         }
 
-        if (rearRightMotor != null)
-        {
-            rearRightMotor.setPower(rightPower);
-        }
+        wheelSpeeds[MotorType.kFrontLeft_val] = leftPower;
+        wheelSpeeds[MotorType.kFrontRight_val] = rightPower;
+        wheelSpeeds[MotorType.kRearLeft_val] = leftPower;
+        wheelSpeeds[MotorType.kRearRight_val] = rightPower;
+        setWheelPowers(wheelSpeeds);
     }   //tankDrive
 
     public void arcadeDrive(double drivePower, double turnPower)
@@ -212,6 +380,29 @@ public class HalRobotDrive
         drivePower = limit(drivePower);
         turnPower = limit(turnPower);
 
+        if (desaturationMode != null)
+        {
+            if (kinematics != null)
+            {
+                kinematicDrive(0.0, drivePower, turnPower);
+                return;
+            }
+
+            for (int i = 0; i < MAX_NUM_MOTORS; i++)
+            {
+                translationSpeeds[i] = drivePower;
+            }
+            rotationSpeeds[MotorType.kFrontLeft_val] = turnPower;
+            rotationSpeeds[MotorType.kFrontRight_val] = -turnPower;
+            rotationSpeeds[MotorType.kRearLeft_val] = turnPower;
+            rotationSpeeds[MotorType.kRearRight_val] = -turnPower;
+            desaturate(
+                    translationSpeeds, rotationSpeeds, wheelSpeeds,
+                    desaturationMode);
+            setWheelPowers(wheelSpeeds);
+            return;
+        }
+
         if (drivePower + turnPower > MOTOR_MAX_VALUE)
         {
             //
@@ -262,7 +453,7 @@ public class HalRobotDrive
 
     public void mecanumDrive_Cartesian(double x, double y, double rotation, double gyroAngle)
     {
-        if (numMotors != MAX_NUM_MOTORS)
+        if (kinematics == null && numMotors != MAX_NUM_MOTORS)
         {
             throw new IllegalArgumentException("Mecanum drive requires 4 motors");
         }
@@ -271,41 +462,55 @@ public class HalRobotDrive
         y = limit(y);
         rotation = limit(rotation);
 
-        double cosA = Math.cos(Math.toRadians(gyroAngle));
-        double sinA = Math.sin(Math.toRadians(gyroAngle));
-        x = x*cosA - y*sinA;
-        y = x*sinA + y*cosA;
-
-        double wheelSpeeds[] = new double[MAX_NUM_MOTORS];
-        wheelSpeeds[MotorType.kFrontLeft_val] = x + y + rotation;
-        wheelSpeeds[MotorType.kFrontRight_val] = -x + y - rotation;
-        wheelSpeeds[MotorType.kRearLeft_val] = -x + y + rotation;
-        wheelSpeeds[MotorType.kRearRight_val] = x + y - rotation;
-        normalize(wheelSpeeds);
-
-        if (frontLeftMotor != null)
-        {
-            frontLeftMotor.setPower(wheelSpeeds[MotorType.kFrontLeft_val]);
-        }
-
-        if (frontRightMotor != null)
+        if (gyroAngle != 0.0)
         {
-            frontRightMotor.setPower(wheelSpeeds[MotorType.kFrontRight_val]);
+            //
+            // Rotate the field oriented command into the robot frame. Both
+            // components must come from the unrotated x and y.
+            //
+            double angle = Math.toRadians(gyroAngle);
+            double cosA = Math.cos(angle);
+            double sinA = Math.sin(angle);
+            double rotatedX = x*cosA - y*sinA;
+            double rotatedY = x*sinA + y*cosA;
+            x = rotatedX;
+            y = rotatedY;
         }
 
-        if (rearLeftMotor != null)
+        if (kinematics != null)
         {
-            rearLeftMotor.setPower(wheelSpeeds[MotorType.kRearLeft_val]);
+            kinematicDrive(x, y, rotation);
+            return;
         }
 
-        if (rearRightMotor != null)
-        {
-            rearRightMotor.setPower(wheelSpeeds[MotorType.kRearRight_val]);
-        }
+        translationSpeeds[MotorType.kFrontLeft_val] = x + y;
+        translationSpeeds[MotorType.kFrontRight_val] = -x + y;
+        translationSpeeds[MotorType.kRearLeft_val] = -x + y;
+        translationSpeeds[MotorType.kRearRight_val] = x + y;
+        setMecanumRotation(rotation);
+        desaturate(
+                translationSpeeds, rotationSpeeds, wheelSpeeds,
+                desaturationMode != null?
+                        desaturationMode: DesaturationMode.PROPORTIONAL);
+        setWheelPowers(wheelSpeeds);
     }   //mecanumDrive_Cartesian
 
     public void mecanumDrive_Polar(double magnitude, double direction, double rotation)
     {
+        if (kinematics != null)
+        {
+            //
+            // Direction is clockwise from forward.
+            //
+            double dirInRad = Math.toRadians(direction);
+            magnitude = limit(magnitude);
+            kinematicDrive(
+                    magnitude*Math.sin(dirInRad),
+                    magnitude*Math.cos(dirInRad),
+                    limit(rotation));
+            return;
+        }
+
         if (numMotors != MAX_NUM_MOTORS)
         {
             throw new IllegalArgumentException("Mecanum drive requires 4 motors");
@@ -316,33 +521,208 @@ public class HalRobotDrive
         double cosD = Math.cos(dirInRad);
         double sinD = Math.sin(dirInRad);
 
-        double wheelSpeeds[] = new double[MAX_NUM_MOTORS];
-        wheelSpeeds[MotorType.kFrontLeft_val] = (sinD*magnitude + rotation);
-        wheelSpeeds[MotorType.kFrontRight_val] = (cosD*magnitude - rotation);
-        wheelSpeeds[MotorType.kRearLeft_val] = (cosD*magnitude + rotation);
-        wheelSpeeds[MotorType.kRearRight_val] = (sinD*magnitude - rotation);
-        normalize(wheelSpeeds);
+        translationSpeeds[MotorType.kFrontLeft_val] = sinD*magnitude;
+        translationSpeeds[MotorType.kFrontRight_val] = cosD*magnitude;
+        translationSpeeds[MotorType.kRearLeft_val] = cosD*magnitude;
+        translationSpeeds[MotorType.kRearRight_val] = sinD*magnitude;
+        setMecanumRotation(rotation);
+        desaturate(
+                translationSpeeds, rotationSpeeds, wheelSpeeds,
+                desaturationMode != null?
+                        desaturationMode: DesaturationMode.PROPORTIONAL);
+        setWheelPowers(wheelSpeeds);
+    }   //mecanumDrive_Polar
+
+    private void setMecanumRotation(double rotation)
+    {
+        rotationSpeeds[MotorType.kFrontLeft_val] = rotation;
+        rotationSpeeds[MotorType.kFrontRight_val] = -rotation;
+        rotationSpeeds[MotorType.kRearLeft_val] = rotation;
+        rotationSpeeds[MotorType.kRearRight_val] = -rotation;
+    }   //setMecanumRotation
+
+    private void kinematicDrive(double x, double y, double rotation)
+    {
+        //
+        // Axes the drivetrain can't move along (x on a tank drive) are
+        // simply ignored by its wheel matrix.
+        //
+        kinematics.getWheelPowers(x, y, 0.0, kinematicTranslation);
+        kinematics.getWheelPowers(0.0, 0.0, rotation, kinematicRotation);
+        desaturate(
+                kinematicTranslation, kinematicRotation, kinematicSpeeds,
+                desaturationMode != null?
+                        desaturationMode: DesaturationMode.PROPORTIONAL);
+        setWheelPowers(kinematicSpeeds);
+    }   //kinematicDrive
+
+    private void desaturate(
+            double[] translation,
+            double[] rotation,
+            double[] wheelSpeeds,
+            DesaturationMode mode)
+    {
+        switch (mode)
+        {
+            case PRESERVE_ROTATION:
+                desaturateWithPriority(rotation, translation, wheelSpeeds);
+                break;
+
+            case PRESERVE_TRANSLATION:
+                desaturateWithPriority(translation, rotation, wheelSpeeds);
+                break;
+
+            case PROPORTIONAL:
+            default:
+                for (int i = 0; i < wheelSpeeds.length; i++)
+                {
+                    wheelSpeeds[i] = translation[i] + rotation[i];
+                }
+                normalize(wheelSpeeds);
+                break;
+        }
+    }   //desaturate
 
-        if (frontLeftMotor != null)
+    private void desaturateWithPriority(
+            double[] kept, double[] shed, double[] wheelSpeeds)
+    {
+        double maxKept = 0.0;
+        for (int i = 0; i < wheelSpeeds.length; i++)
         {
-            frontLeftMotor.setPower(wheelSpeeds[MotorType.kFrontLeft_val]);
+            maxKept = Math.max(maxKept, Math.abs(kept[i]));
         }
 
-        if (frontRightMotor != null)
+        if (maxKept >= MOTOR_MAX_VALUE)
         {
-            frontRightMotor.setPower(wheelSpeeds[MotorType.kFrontRight_val]);
+            //
+            // The kept part alone saturates, nothing left for the other.
+            //
+            for (int i = 0; i < wheelSpeeds.length; i++)
+            {
+                wheelSpeeds[i] = kept[i]/maxKept;
+            }
+            return;
         }
 
-        if (rearLeftMotor != null)
+        //
+        // Largest scale of the shed part that keeps every wheel within
+        // range on top of the kept part.
+        //
+        double scale = 1.0;
+        for (int i = 0; i < wheelSpeeds.length; i++)
         {
-            rearLeftMotor.setPower(wheelSpeeds[MotorType.kRearLeft_val]);
+            if (shed[i] > 0.0)
+            {
+                scale = Math.min(scale, (MOTOR_MAX_VALUE - kept[i])/shed[i]);
+            }
+            else if (shed[i] < 0.0)
+            {
+                scale = Math.min(scale, (MOTOR_MIN_VALUE - kept[i])/shed[i]);
+            }
         }
 
-        if (rearRightMotor != null)
+        for (int i = 0; i < wheelSpeeds.length; i++)
         {
-            rearRightMotor.setPower(wheelSpeeds[MotorType.kRearRight_val]);
+            wheelSpeeds[i] = kept[i] + shed[i]*scale;
         }
-    }   //mecanumDrive_Polar
+    }   //desaturateWithPriority
+
+    private void setWheelPowers(double[] wheelSpeeds)
+    {
+        if (accelRate > 0.0 || decelRate > 0.0)
+        {
+            slewLimit(wheelSpeeds);
+        }
+
+        double scale =
+                voltageCompensator != null? voltageCompensator.getScale(): 1.0;
+        if (scale != 1.0)
+        {
+            //
+            // On a low battery the compensation can push wheels past full
+            // power. Scale them all back by the same factor rather than
+            // clipping each one, so the wheel ratios (and so the robot's
+            // direction and turn) stay what was commanded.
+            //
+            double maxMagnitude = 0.0;
+            for (int i = 0; i < outputMotors.length; i++)
+            {
+                if (outputMotors[i] != null)
+                {
+                    maxMagnitude = Math.max(
+                            maxMagnitude, Math.abs(wheelSpeeds[i]*scale));
+                }
+            }
+
+            if (maxMagnitude > MOTOR_MAX_VALUE)
+            {
+                scale *= MOTOR_MAX_VALUE/maxMagnitude;
+            }
+        }
+
+        for (int i = 0; i < outputMotors.length; i++)
+        {
+            if (outputMotors[i] != null)
+            {
+                outputMotors[i].setPower(limit(wheelSpeeds[i]*scale));
+                prevPowers[i] = wheelSpeeds[i];
+            }
+        }
+    }   //setWheelPowers
+
+    private void slewLimit(double[] wheelSpeeds)
+    {
+        //
+        // Don't let a long pause between commands release a full step,
+        // the motors held the previous power all that time.
+        //
+        double currTime = HalTimer.getCurrentTime();
+        double period = Math.min(currTime - slewPrevTime, MAX_SLEW_PERIOD);
+        double scale = 1.0;
+        slewPrevTime = currTime;
+
+        for (int i = 0; i < outputMotors.length; i++)
+        {
+            double change = wheelSpeeds[i] - prevPowers[i];
+            if (outputMotors[i] == null || change == 0.0)
+            {
+                continue;
+            }
+
+            boolean slowing =
+                    Math.abs(wheelSpeeds[i]) < Math.abs(prevPowers[i]) ||
+                    wheelSpeeds[i]*prevPowers[i] < 0.0;
+            double rate = slowing? decelRate: accelRate;
+            if (rate > 0.0)
+            {
+                double maxChange = rate*period;
+                if (Math.abs(change) > maxChange)
+                {
+                    scale = Math.min(scale, maxChange/Math.abs(change));
+                }
+            }
+        }
+
+        slewDeficit = 0.0;
+        if (scale < 1.0)
+        {
+            for (int i = 0; i < outputMotors.length; i++)
+            {
+                if (outputMotors[i] == null)
+                {
+                    continue;
+                }
+
+                double applied =
+                        prevPowers[i] + (wheelSpeeds[i] - prevPowers[i])*scale;
+                slewDeficit = Math.max(
+                        slewDeficit, Math.abs(wheelSpeeds[i] - applied));
+                wheelSpeeds[i] = applied;
+            }
+            totalSlewDeficit += slewDeficit;
+            slewLimitedCount++;
+        }
+    }   //slewLimit
 
     private double limit(double value)
     {
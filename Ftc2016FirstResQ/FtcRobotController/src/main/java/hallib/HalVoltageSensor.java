@@ -0,0 +1,19 @@
+package hallib;
+
+import com.qualcomm.robotcore.hardware.VoltageSensor;
+
+public class HalVoltageSensor
+{
+    private VoltageSensor sensor;
+
+    public HalVoltageSensor(VoltageSensor sensor)
+    {
+        this.sensor = sensor;
+    }   //HalVoltageSensor
+
+    public double getVoltage()
+    {
+        return sensor.getVoltage();
+    }   //getVoltage
+
+}   //class HalVoltageSensor
@@ -0,0 +1,14 @@
+package trclib;
+
+public interface TrcController
+{
+    public String getName();
+    public void setOutputRange(double minOutput, double maxOutput);
+    public double getTarget();
+    public void setTarget(double target);
+    public double getError();
+    public void reset();
+    public boolean isOnTarget();
+    public double getOutput();
+    public void setAppliedOutput(double appliedOutput);
+}   //interface TrcController
@@ -3,6 +3,7 @@ package trclib;
 import hallib.HalGyro;
 import hallib.HalRobotDrive;
 import hallib.HalSpeedController;
+import hallib.HalTimer;
 
 public class TrcDriveBase extends HalRobotDrive implements TrcTaskMgr.Task
 {
@@ -10,12 +11,29 @@ public class TrcDriveBase extends HalRobotDrive implements TrcTaskMgr.Task
     private static final boolean debugEnabled = false;
     private TrcDbgTrace dbgTrace = null;
 
+    private static final int DEF_SPEED_WINDOW = 5;
+    private static final int DEF_POSE_HISTORY = 50;
+
     private HalSpeedController leftFrontMotor;
     private HalSpeedController leftRearMotor;
     private HalSpeedController rightFrontMotor;
     private HalSpeedController rightRearMotor;
     private HalGyro gyro;
     private TrcMotorPosition motorPosition;
+    private TrcDriveKinematics kinematics;
+    private HalSpeedController[] encoderMotors;
+    private double[] encoderPositions;
+    private int lfIndex;
+    private int lrIndex;
+    private int rfIndex;
+    private int rrIndex;
+    private double encoderReadTime;
+    private TrcVelocityEstimator[] encoderVelocities;
+    private TrcVelocityEstimator turnVelocity;
+    private double[] prevEncoderPositions;
+    private double[] encoderDeltas;
+    private double[] encoderSpeeds;
+    private double[] robotMotion;
 
     private boolean fourMotors;
     private double xPos;
@@ -27,7 +45,14 @@ public class TrcDriveBase extends HalRobotDrive implements TrcTaskMgr.Task
     private double rotScale;
     private double xSpeed;
     private double ySpeed;
-//    private double turnSpeed;
+    private double turnSpeed;
+    private double prevHeading;
+    private double fieldX;
+    private double fieldY;
+    private double fieldHeading;
+    private TrcHeadingFilter headingFilter;
+    private TrcPoseHistory poseHistory;
+    private double[] pastPose;
 
     public TrcDriveBase(
             HalSpeedController leftMotor,
@@ -61,12 +86,70 @@ public class TrcDriveBase extends HalRobotDrive implements TrcTaskMgr.Task
         this.leftRearMotor = leftRearMotor;
         this.rightFrontMotor = rightFrontMotor;
         this.rightRearMotor = rightRearMotor;
+        fourMotors = leftFrontMotor != null && rightFrontMotor != null;
+
+        int numEncoders = 0;
+        lfIndex = leftFrontMotor != null? numEncoders++: -1;
+        lrIndex = leftRearMotor != null? numEncoders++: -1;
+        rfIndex = rightFrontMotor != null? numEncoders++: -1;
+        rrIndex = rightRearMotor != null? numEncoders++: -1;
+        HalSpeedController[] motors = new HalSpeedController[numEncoders];
+        if (lfIndex >= 0) motors[lfIndex] = leftFrontMotor;
+        if (lrIndex >= 0) motors[lrIndex] = leftRearMotor;
+        if (rfIndex >= 0) motors[rfIndex] = rightFrontMotor;
+        if (rrIndex >= 0) motors[rrIndex] = rightRearMotor;
+        driveBaseInit(null, motors, motorPosition, gyro);
+    }   //TrcDriveBase
+
+    public TrcDriveBase(
+            TrcDriveKinematics kinematics,
+            TrcMotorPosition   motorPosition,
+            HalGyro            gyro,
+            HalSpeedController... motors)
+    {
+        super(kinematics, motors);
+
+        if (debugEnabled)
+        {
+            dbgTrace = new TrcDbgTrace(
+                    moduleName,
+                    false,
+                    TrcDbgTrace.TraceLevel.API,
+                    TrcDbgTrace.MsgLevel.INFO);
+        }
+
+        //
+        // Any drivetrain described by a wheel matrix, one motor per matrix
+        // row. Odometry comes from the matrix's forward kinematics.
+        //
+        fourMotors = false;
+        lfIndex = lrIndex = rfIndex = rrIndex = -1;
+        driveBaseInit(kinematics, motors.clone(), motorPosition, gyro);
+    }   //TrcDriveBase
+
+    private void driveBaseInit(
+            TrcDriveKinematics kinematics,
+            HalSpeedController[] motors,
+            TrcMotorPosition motorPosition,
+            HalGyro gyro)
+    {
+        this.kinematics = kinematics;
         this.motorPosition = motorPosition;
         this.gyro = gyro;
-        fourMotors = leftFrontMotor != null && rightFrontMotor != null;
+        encoderMotors = motors;
+        encoderPositions = new double[motors.length];
+        prevEncoderPositions = new double[motors.length];
+        encoderDeltas = new double[motors.length];
+        encoderSpeeds = new double[motors.length];
+        robotMotion = new double[3];
+        encoderReadTime = 0.0;
+        createSpeedEstimators(DEF_SPEED_WINDOW);
+        poseHistory = new TrcPoseHistory(moduleName, DEF_POSE_HISTORY);
+        pastPose = new double[3];
         xScale = 1.0;
         yScale = 1.0;
         rotScale = 1.0;
+        headingFilter = null;
         resetPosition();
 
         TrcTaskMgr.registerTask(
@@ -84,7 +167,7 @@ public class TrcDriveBase extends HalRobotDrive implements TrcTaskMgr.Task
                     this,
                     TrcTaskMgr.TaskType.PREPERIODIC_TASK);
         }
-    }   //TrcDriveBase
+    }   //driveBaseInit
 
     public void resetPosition()
     {
@@ -97,24 +180,9 @@ public class TrcDriveBase extends HalRobotDrive implements TrcTaskMgr.Task
 
         if (motorPosition != null)
         {
-            if (leftFrontMotor != null)
-            {
-                motorPosition.resetMotorPosition(leftFrontMotor);
-            }
-
-            if (leftRearMotor != null)
+            for (int i = 0; i < encoderMotors.length; i++)
             {
-                motorPosition.resetMotorPosition(leftRearMotor);
-            }
-
-            if (rightFrontMotor != null)
-            {
-                motorPosition.resetMotorPosition(rightFrontMotor);
-            }
-
-            if (rightRearMotor != null)
-            {
-                motorPosition.resetMotorPosition(rightRearMotor);
+                motorPosition.resetMotorPosition(encoderMotors[i]);
             }
         }
 
@@ -129,7 +197,25 @@ public class TrcDriveBase extends HalRobotDrive implements TrcTaskMgr.Task
         heading = 0.0;
         xSpeed = 0.0;
         ySpeed = 0.0;
-//        turnSpeed = 0.0;
+        turnSpeed = 0.0;
+        for (int i = 0; i < encoderVelocities.length; i++)
+        {
+            encoderVelocities[i].reset();
+        }
+        turnVelocity.reset();
+        for (int i = 0; i < prevEncoderPositions.length; i++)
+        {
+            prevEncoderPositions[i] = 0.0;
+        }
+        prevHeading = 0.0;
+        fieldX = 0.0;
+        fieldY = 0.0;
+        fieldHeading = 0.0;
+        if (headingFilter != null)
+        {
+            headingFilter.reset(0.0);
+        }
+        poseHistory.clear();
 
         if (debugEnabled)
         {
@@ -309,6 +395,171 @@ public class TrcDriveBase extends HalRobotDrive implements TrcTaskMgr.Task
         return heading;
     }   //getHeading
 
+    public double getEncoderReadTime()
+    {
+        return encoderReadTime;
+    }   //getEncoderReadTime
+
+    public void setFieldPose(double x, double y, double heading)
+    {
+        final String funcName = "setFieldPose";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "x=%f,y=%f,heading=%f", x, y, heading);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        fieldX = x;
+        fieldY = y;
+        fieldHeading = heading;
+        if (headingFilter != null)
+        {
+            headingFilter.reset(0.0);
+        }
+        //
+        // The recorded poses and headings belong to the old field frame,
+        // fitting a turn speed across the jump would report a spin that
+        // never happened.
+        //
+        poseHistory.clear();
+        turnVelocity.reset();
+    }   //setFieldPose
+
+    public void setPoseHistorySize(int numPoses)
+    {
+        final String funcName = "setPoseHistorySize";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "numPoses=%d", numPoses);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        //
+        // One pose is recorded per tick, so this must cover the longest
+        // sensor latency we want to correct for.
+        //
+        poseHistory = new TrcPoseHistory(moduleName, numPoses);
+    }   //setPoseHistorySize
+
+    public boolean getFieldPoseAt(double time, double[] pose)
+    {
+        //
+        // Fills pose with the field {x, y, heading} the robot had at the
+        // given time (HalTimer seconds, e.g. when a camera frame was
+        // captured). Returns false if the time is not covered by the
+        // history, in which case the nearest recorded pose is returned.
+        //
+        return poseHistory.getPoseAt(time, pose);
+    }   //getFieldPoseAt
+
+    public boolean correctFieldPose(
+            double time, double x, double y, double heading)
+    {
+        final String funcName = "correctFieldPose";
+        boolean corrected = poseHistory.getPoseAt(time, pastPose);
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "time=%f,x=%f,y=%f,heading=%f", time, x, y, heading);
+        }
+
+        //
+        // A delayed measurement says the robot was at (x, y, heading) at
+        // the given time. Replace the pose we had recorded for that time
+        // with it and carry everything driven since then along, rotated by
+        // the heading correction, so the current pose stays consistent
+        // with both. Measurements older than the history are dropped.
+        //
+        if (corrected)
+        {
+            double deltaHeading = heading - pastPose[2];
+            double theta = Math.toRadians(deltaHeading);
+            double cosTheta = Math.cos(theta);
+            double sinTheta = Math.sin(theta);
+            double dx = fieldX - pastPose[0];
+            double dy = fieldY - pastPose[1];
+
+            fieldX = x + dx*cosTheta + dy*sinTheta;
+            fieldY = y - dx*sinTheta + dy*cosTheta;
+            fieldHeading += deltaHeading;
+            poseHistory.transform(
+                    pastPose[0], pastPose[1], pastPose[2], x, y, heading);
+            turnVelocity.reset();
+        }
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceExit(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "=%s", Boolean.toString(corrected));
+        }
+
+        return corrected;
+    }   //correctFieldPose
+
+    public void setHeadingFusion(
+            double gyroVariance,
+            double encoderVariance,
+            double slipGain)
+    {
+        final String funcName = "setHeadingFusion";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "gyroVar=%f,encVar=%f,slipGain=%f",
+                    gyroVariance, encoderVariance, slipGain);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        //
+        // Blend the gyro and encoder heading changes for the field heading
+        // instead of taking the gyro alone. Variances are in degrees
+        // squared per tick and rotScale must yield degrees. Only useful
+        // with both a gyro and encoders.
+        //
+        if (gyro == null || motorPosition == null)
+        {
+            throw new IllegalStateException(
+                    "Heading fusion needs both a gyro and encoders.");
+        }
+
+        headingFilter = new TrcHeadingFilter(
+                moduleName, gyroVariance, encoderVariance, slipGain);
+    }   //setHeadingFusion
+
+    public double getHeadingVariance()
+    {
+        //
+        // Only tracked with heading fusion enabled.
+        //
+        return headingFilter != null? headingFilter.getVariance(): 0.0;
+    }   //getHeadingVariance
+
+    public double getFieldX()
+    {
+        return fieldX;
+    }   //getFieldX
+
+    public double getFieldY()
+    {
+        return fieldY;
+    }   //getFieldY
+
+    public double getFieldHeading()
+    {
+        return fieldHeading;
+    }   //getFieldHeading
+
     public double getXSpeed()
     {
         final String funcName = "getXSpeed";
@@ -339,7 +590,6 @@ public class TrcDriveBase extends HalRobotDrive implements TrcTaskMgr.Task
         return ySpeed;
     }   //getYSpeed
 
-    /*
     public double getTurnSpeed()
     {
         final String funcName = "getTurnSpeed";
@@ -354,7 +604,37 @@ public class TrcDriveBase extends HalRobotDrive implements TrcTaskMgr.Task
 
         return turnSpeed;
     }   //getTurnSpeed
-    */
+
+    public void setSpeedWindow(int windowSize)
+    {
+        final String funcName = "setSpeedWindow";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "windowSize=%d", windowSize);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        //
+        // Number of ticks the speeds are fitted over. Longer is smoother at
+        // low speed, shorter lags less.
+        //
+        createSpeedEstimators(windowSize);
+    }   //setSpeedWindow
+
+    private void createSpeedEstimators(int windowSize)
+    {
+        encoderVelocities = new TrcVelocityEstimator[encoderMotors.length];
+        for (int i = 0; i < encoderVelocities.length; i++)
+        {
+            encoderVelocities[i] = new TrcVelocityEstimator(
+                    moduleName + ".enc" + i, windowSize);
+        }
+        turnVelocity = new TrcVelocityEstimator(
+                moduleName + ".turn", windowSize);
+    }   //createSpeedEstimators
 
     /*
     public void setBrakeModeEnabled(boolean enabled)
@@ -498,6 +778,10 @@ public class TrcDriveBase extends HalRobotDrive implements TrcTaskMgr.Task
                     "mode=%s", runMode.toString());
         }
 
+        double robotDeltaX = 0.0;
+        double robotDeltaY = 0.0;
+        double robotDeltaRot = 0.0;
+
         if (motorPosition != null)
         {
             //
@@ -517,57 +801,176 @@ public class TrcDriveBase extends HalRobotDrive implements TrcTaskMgr.Task
             // => (LF + LR) - (RF + RR) = 4rot
             // => rot = ((LF + LR) - (RF + RR))/4
             //
-            double lfEnc = 0.0, lrEnc = 0.0, rfEnc = 0.0, rrEnc = 0.0;
-            double lfSpeed = 0.0, lrSpeed = 0.0, rfSpeed = 0.0, rrSpeed = 0.0;
-            if (leftFrontMotor != null)
-            {
-                lfEnc = motorPosition.getMotorPosition(leftFrontMotor);
-                lfSpeed = motorPosition.getMotorSpeed(leftFrontMotor);
-            }
-            if (leftRearMotor != null)
-            {
-                lrEnc = motorPosition.getMotorPosition(leftRearMotor);
-                lrSpeed = motorPosition.getMotorSpeed(leftRearMotor);
-            }
-            if (rightFrontMotor != null)
+            // The wheels are read one after the other and share one
+            // timestamp (see readEncoders). Wheel speeds are fitted over the
+            // last few reads by their velocity estimators. Both the
+            // kinematics and the fixed layouts work from the same per wheel
+            // position, delta and speed arrays.
+            //
+            double currTime = readEncoders();
+            encoderReadTime = currTime;
+            for (int i = 0; i < encoderPositions.length; i++)
             {
-                rfEnc = motorPosition.getMotorPosition(rightFrontMotor);
-                rfSpeed = motorPosition.getMotorSpeed(rightFrontMotor);
+                encoderVelocities[i].addSample(currTime, encoderPositions[i]);
+                encoderDeltas[i] = encoderPositions[i] - prevEncoderPositions[i];
+                prevEncoderPositions[i] = encoderPositions[i];
+                encoderSpeeds[i] = encoderVelocities[i].getVelocity();
             }
-            if (rightRearMotor != null)
+
+            double lfEnc = lfIndex >= 0? encoderPositions[lfIndex]: 0.0;
+            double lrEnc = lrIndex >= 0? encoderPositions[lrIndex]: 0.0;
+            double rfEnc = rfIndex >= 0? encoderPositions[rfIndex]: 0.0;
+            double rrEnc = rrIndex >= 0? encoderPositions[rrIndex]: 0.0;
+            double lfDelta = lfIndex >= 0? encoderDeltas[lfIndex]: 0.0;
+            double lrDelta = lrIndex >= 0? encoderDeltas[lrIndex]: 0.0;
+            double rfDelta = rfIndex >= 0? encoderDeltas[rfIndex]: 0.0;
+            double rrDelta = rrIndex >= 0? encoderDeltas[rrIndex]: 0.0;
+            double lfSpeed = lfIndex >= 0? encoderSpeeds[lfIndex]: 0.0;
+            double lrSpeed = lrIndex >= 0? encoderSpeeds[lrIndex]: 0.0;
+            double rfSpeed = rfIndex >= 0? encoderSpeeds[rfIndex]: 0.0;
+            double rrSpeed = rrIndex >= 0? encoderSpeeds[rrIndex]: 0.0;
+
+            if (kinematics != null)
             {
-                rrEnc = motorPosition.getMotorPosition(rightRearMotor);
-                rrSpeed = motorPosition.getMotorSpeed(rightRearMotor);
+                kinematics.forwardKinematics(encoderPositions, robotMotion);
+                xPos = robotMotion[0]*xScale;
+                yPos = robotMotion[1]*yScale;
+                rotPos = robotMotion[2]*rotScale;
+                kinematics.forwardKinematics(encoderSpeeds, robotMotion);
+                xSpeed = robotMotion[0]*xScale;
+                ySpeed = robotMotion[1]*yScale;
+                kinematics.forwardKinematics(encoderDeltas, robotMotion);
+                robotDeltaX = robotMotion[0]*xScale;
+                robotDeltaY = robotMotion[1]*yScale;
+                robotDeltaRot = robotMotion[2]*rotScale;
             }
-
-            if (fourMotors)
+            else if (fourMotors)
             {
                 xPos = ((lfEnc + rrEnc) - (rfEnc + lrEnc))*xScale/4.0;
                 yPos = (lfEnc + lrEnc + rfEnc + rrEnc)*yScale/4.0;
                 rotPos = ((lfEnc + lrEnc) - (rfEnc + rrEnc))*rotScale/4.0;
                 xSpeed = ((lfSpeed + rrSpeed) - (rfSpeed + lrSpeed))*xScale/4.0;
                 ySpeed = (lfSpeed + lrSpeed + rfSpeed + rrSpeed)*yScale/4.0;
+                robotDeltaX = ((lfDelta + rrDelta) - (rfDelta + lrDelta))*xScale/4.0;
+                robotDeltaY = (lfDelta + lrDelta + rfDelta + rrDelta)*yScale/4.0;
+                robotDeltaRot = ((lfDelta + lrDelta) - (rfDelta + rrDelta))*rotScale/4.0;
             }
             else
             {
                 yPos = (lrEnc + rrEnc)*yScale/2.0;
                 rotPos = (lrEnc - rrEnc)*rotScale/2.0;
                 ySpeed = (lrSpeed + rrSpeed)*yScale/2.0;
+                robotDeltaY = (lrDelta + rrDelta)*yScale/2.0;
+                robotDeltaRot = (lrDelta - rrDelta)*rotScale/2.0;
             }
         }
 
         if (gyro != null)
         {
             heading = gyro.getAngle();
-//            turnSpeed = gyro.getRate();
+            double gyroDeltaRot = heading - prevHeading;
+            prevHeading = heading;
+            if (headingFilter != null)
+            {
+                robotDeltaRot = headingFilter.update(gyroDeltaRot, robotDeltaRot);
+            }
+            else
+            {
+                //
+                // The gyro doesn't slip, prefer it for the heading change.
+                //
+                robotDeltaRot = gyroDeltaRot;
+            }
         }
 
+        if (motorPosition != null)
+        {
+            updateFieldPose(robotDeltaX, robotDeltaY, robotDeltaRot);
+        }
+        else
+        {
+            fieldHeading += robotDeltaRot;
+        }
+
+        //
+        // Turn speed comes from the best heading we have (gyro, fused or
+        // encoders), fitted the same way as the wheel speeds. The pose is
+        // recorded with the same timestamp for delayed measurements.
+        //
+        double poseTime =
+                motorPosition != null? encoderReadTime: HalTimer.getCurrentTime();
+        turnVelocity.addSample(poseTime, fieldHeading);
+        turnSpeed = turnVelocity.getVelocity();
+        poseHistory.addPose(poseTime, fieldX, fieldY, fieldHeading);
+
         if (debugEnabled)
         {
             dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.TASK);
         }
     }   //prePeriodicTask
 
+    private void updateFieldPose(double deltaX, double deltaY, double deltaRot)
+    {
+        //
+        // Integrate one tick of robot relative motion (x to the right, y
+        // forward, rotation clockwise in degrees, the same convention as
+        // the gyro) into the field pose. Rather than moving along the old
+        // heading, assume the robot moved along a constant curvature arc
+        // over the tick (the SE(2) exponential map), which stays accurate
+        // while driving and turning at the same time:
+        //
+        //  a = sin(w)/w, b = (1 - cos(w))/w  with w the counter-clockwise
+        //  rotation in radians
+        //  dx' = a*dx - b*dy,  dy' = b*dx + a*dy   (still robot frame)
+        //
+        // then rotate (dx', dy') into the field by the starting heading.
+        // Without a gyro, rotScale must convert encoder counts to degrees.
+        //
+        double w = -Math.toRadians(deltaRot);
+        double a, b;
+
+        if (Math.abs(w) < 1.0e-6)
+        {
+            a = 1.0 - w*w/6.0;
+            b = w/2.0;
+        }
+        else
+        {
+            a = Math.sin(w)/w;
+            b = (1.0 - Math.cos(w))/w;
+        }
+
+        double dx = a*deltaX - b*deltaY;
+        double dy = b*deltaX + a*deltaY;
+        double theta = Math.toRadians(fieldHeading);
+        double cosTheta = Math.cos(theta);
+        double sinTheta = Math.sin(theta);
+
+        fieldX += dx*cosTheta + dy*sinTheta;
+        fieldY += -dx*sinTheta + dy*cosTheta;
+        fieldHeading += deltaRot;
+    }   //updateFieldPose
+
+    private double readEncoders()
+    {
+        //
+        // There is no bulk read in the HAL, so these are sequential reads,
+        // each its own transaction, not a true snapshot. They are done back
+        // to back and stamped with the time midway through, so the skew
+        // between any wheel and the stamp is at most half the time the
+        // reads took.
+        //
+        double startTime = HalTimer.getCurrentTime();
+
+        for (int i = 0; i < encoderMotors.length; i++)
+        {
+            encoderPositions[i] =
+                    motorPosition.getMotorPosition(encoderMotors[i]);
+        }
+
+        return (startTime + HalTimer.getCurrentTime())/2.0;
+    }   //readEncoders
+
     public void postPeriodicTask(TrcRobot.RunMode runMode)
     {
     }   //postPeriodicTask
@@ -0,0 +1,309 @@
+package trclib;
+
+public class TrcDriveKinematics
+{
+    private static final String moduleName = "TrcDriveKinematics";
+    private static final boolean debugEnabled = false;
+    private TrcDbgTrace dbgTrace = null;
+
+    private static final int NUM_AXES = 3;
+    private static final double ZERO_TOLERANCE = 1.0e-9;
+
+    //
+    // Drivetrain kinematics described by a wheel matrix with one row per
+    // wheel, {x, y, rotation}, giving how much that wheel turns for a unit
+    // of robot motion along each axis (x to the right, y forward, rotation
+    // clockwise, same as TrcDriveBase):
+    //
+    //  wheel = M * {x, y, rotation}                (inverse kinematics)
+    //  {x, y, rotation} = pinv(M) * wheel          (forward kinematics)
+    //
+    // pinv(M) = (M'M)^-1 M' is the least squares fit of the robot motion
+    // to all the wheels, which is what odometry wants when there are more
+    // wheels than axes. Axes the drivetrain can't move along (x on a tank
+    // drive) are all zero columns; they are left out of the fit and always
+    // come out as zero. Both matrices are computed once here, so the per
+    // tick work is a few multiplies with no allocation.
+    //
+    // Drive commands give rotation as a power level rather than a physical
+    // rate, so they use a copy of M whose rotation column is divided by its
+    // largest magnitude: full rotation power drives the wheel furthest from
+    // the center at full power whatever units the geometry was given in.
+    // Odometry keeps the unscaled M.
+    //
+    private String instanceName;
+    private double[][] wheelMatrix;
+    private double[][] powerMatrix;
+    private double[][] robotMatrix;
+
+    public TrcDriveKinematics(final String instanceName, double[][] wheelMatrix)
+    {
+        if (debugEnabled)
+        {
+            dbgTrace = new TrcDbgTrace(
+                    moduleName + "." + instanceName,
+                    false,
+                    TrcDbgTrace.TraceLevel.API,
+                    TrcDbgTrace.MsgLevel.INFO);
+        }
+
+        if (wheelMatrix == null || wheelMatrix.length == 0)
+        {
+            throw new IllegalArgumentException("Must have at least one wheel.");
+        }
+
+        int numWheels = wheelMatrix.length;
+        this.instanceName = instanceName;
+        this.wheelMatrix = new double[numWheels][NUM_AXES];
+        for (int i = 0; i < numWheels; i++)
+        {
+            if (wheelMatrix[i] == null || wheelMatrix[i].length != NUM_AXES)
+            {
+                throw new IllegalArgumentException(
+                        "Each wheel row must be {x, y, rotation}.");
+            }
+            System.arraycopy(wheelMatrix[i], 0, this.wheelMatrix[i], 0, NUM_AXES);
+        }
+        robotMatrix = pseudoInverse(this.wheelMatrix);
+
+        double maxRot = 0.0;
+        for (int i = 0; i < numWheels; i++)
+        {
+            maxRot = Math.max(maxRot, Math.abs(this.wheelMatrix[i][2]));
+        }
+
+        powerMatrix = new double[numWheels][NUM_AXES];
+        for (int i = 0; i < numWheels; i++)
+        {
+            System.arraycopy(this.wheelMatrix[i], 0, powerMatrix[i], 0, NUM_AXES);
+            if (maxRot > ZERO_TOLERANCE)
+            {
+                powerMatrix[i][2] /= maxRot;
+            }
+        }
+    }   //TrcDriveKinematics
+
+    //
+    // Common drivetrains.
+    //
+
+    public static TrcDriveKinematics createTank(
+            final String instanceName, int wheelsPerSide)
+    {
+        //
+        // Left wheels first, then right wheels, e.g. 3 per side for a six
+        // wheel drive.
+        //
+        if (wheelsPerSide < 1)
+        {
+            throw new IllegalArgumentException(
+                    "Must have at least one wheel per side.");
+        }
+
+        double[][] matrix = new double[2*wheelsPerSide][];
+        for (int i = 0; i < wheelsPerSide; i++)
+        {
+            matrix[i] = new double[]{0.0, 1.0, 1.0};
+            matrix[wheelsPerSide + i] = new double[]{0.0, 1.0, -1.0};
+        }
+
+        return new TrcDriveKinematics(instanceName, matrix);
+    }   //createTank
+
+    public static TrcDriveKinematics createHDrive(final String instanceName)
+    {
+        //
+        // Left, right, then the sideways center wheel.
+        //
+        return new TrcDriveKinematics(
+                instanceName,
+                new double[][]{
+                        {0.0, 1.0, 1.0},
+                        {0.0, 1.0, -1.0},
+                        {1.0, 0.0, 0.0}});
+    }   //createHDrive
+
+    public static TrcDriveKinematics createMecanum(final String instanceName)
+    {
+        //
+        // Front left, front right, rear left, rear right, the same mixing
+        // as HalRobotDrive.mecanumDrive_Cartesian.
+        //
+        return new TrcDriveKinematics(
+                instanceName,
+                new double[][]{
+                        {1.0, 1.0, 1.0},
+                        {-1.0, 1.0, -1.0},
+                        {-1.0, 1.0, 1.0},
+                        {1.0, 1.0, -1.0}});
+    }   //createMecanum
+
+    public static TrcDriveKinematics createXDrive(final String instanceName)
+    {
+        //
+        // Omni wheels on the corners at 45 degrees mix exactly like
+        // mecanum wheels: front left, front right, rear left, rear right.
+        //
+        return createMecanum(instanceName);
+    }   //createXDrive
+
+    public static TrcDriveKinematics createFromGeometry(
+            final String instanceName, double[][] wheels)
+    {
+        //
+        // Each wheel is {xPos, yPos, angle}: where it sits relative to the
+        // center of rotation and the direction it rolls when driven
+        // forward, in degrees clockwise from robot forward. This covers
+        // traction and omni wheels in any layout; a wheel only sees the
+        // part of the robot motion along its rolling direction.
+        //
+        double[][] matrix = new double[wheels.length][];
+        for (int i = 0; i < wheels.length; i++)
+        {
+            double angle = Math.toRadians(wheels[i][2]);
+            double dirX = Math.sin(angle);
+            double dirY = Math.cos(angle);
+            matrix[i] = new double[]{
+                    dirX, dirY, wheels[i][1]*dirX - wheels[i][0]*dirY};
+        }
+
+        return new TrcDriveKinematics(instanceName, matrix);
+    }   //createFromGeometry
+
+    public String getName()
+    {
+        return instanceName;
+    }   //getName
+
+    public int getNumWheels()
+    {
+        return wheelMatrix.length;
+    }   //getNumWheels
+
+    public void inverseKinematics(
+            double x, double y, double rotation, double[] wheels)
+    {
+        for (int i = 0; i < wheelMatrix.length; i++)
+        {
+            double[] row = wheelMatrix[i];
+            wheels[i] = row[0]*x + row[1]*y + row[2]*rotation;
+        }
+    }   //inverseKinematics
+
+    public void getWheelPowers(
+            double x, double y, double rotation, double[] wheels)
+    {
+        for (int i = 0; i < powerMatrix.length; i++)
+        {
+            double[] row = powerMatrix[i];
+            wheels[i] = row[0]*x + row[1]*y + row[2]*rotation;
+        }
+    }   //getWheelPowers
+
+    public void forwardKinematics(double[] wheels, double[] robot)
+    {
+        for (int axis = 0; axis < NUM_AXES; axis++)
+        {
+            double[] row = robotMatrix[axis];
+            double sum = 0.0;
+            for (int i = 0; i < row.length; i++)
+            {
+                sum += row[i]*wheels[i];
+            }
+            robot[axis] = sum;
+        }
+    }   //forwardKinematics
+
+    private static double[][] pseudoInverse(double[][] m)
+    {
+        int numWheels = m.length;
+        double[][] pinv = new double[NUM_AXES][numWheels];
+
+        //
+        // Pick the axes the wheels actually act on.
+        //
+        int[] axes = new int[NUM_AXES];
+        int numAxes = 0;
+        for (int axis = 0; axis < NUM_AXES; axis++)
+        {
+            double sumSq = 0.0;
+            for (int i = 0; i < numWheels; i++)
+            {
+                sumSq += m[i][axis]*m[i][axis];
+            }
+            if (sumSq > ZERO_TOLERANCE)
+            {
+                axes[numAxes++] = axis;
+            }
+        }
+
+        //
+        // Gauss-Jordan on [M'M | M'] over the active axes.
+        //
+        double[][] aug = new double[numAxes][numAxes + numWheels];
+        for (int r = 0; r < numAxes; r++)
+        {
+            for (int c = 0; c < numAxes; c++)
+            {
+                double sum = 0.0;
+                for (int i = 0; i < numWheels; i++)
+                {
+                    sum += m[i][axes[r]]*m[i][axes[c]];
+                }
+                aug[r][c] = sum;
+            }
+            for (int i = 0; i < numWheels; i++)
+            {
+                aug[r][numAxes + i] = m[i][axes[r]];
+            }
+        }
+
+        for (int col = 0; col < numAxes; col++)
+        {
+            int pivot = col;
+            for (int r = col + 1; r < numAxes; r++)
+            {
+                if (Math.abs(aug[r][col]) > Math.abs(aug[pivot][col]))
+                {
+                    pivot = r;
+                }
+            }
+
+            if (Math.abs(aug[pivot][col]) < ZERO_TOLERANCE)
+            {
+                throw new IllegalArgumentException(
+                        "Wheel matrix can't tell the robot axes apart.");
+            }
+
+            double[] tmp = aug[col];
+            aug[col] = aug[pivot];
+            aug[pivot] = tmp;
+
+            double scale = aug[col][col];
+            for (int c = 0; c < aug[col].length; c++)
+            {
+                aug[col][c] /= scale;
+            }
+
+            for (int r = 0; r < numAxes; r++)
+            {
+                if (r != col && aug[r][col] != 0.0)
+                {
+                    double factor = aug[r][col];
+                    for (int c = 0; c < aug[r].length; c++)
+                    {
+                        aug[r][c] -= factor*aug[col][c];
+                    }
+                }
+            }
+        }
+
+        for (int r = 0; r < numAxes; r++)
+        {
+            System.arraycopy(aug[r], numAxes, pinv[axes[r]], 0, numWheels);
+        }
+
+        return pinv;
+    }   //pseudoInverse
+
+}   //class TrcDriveKinematics
@@ -0,0 +1,223 @@
+package trclib;
+
+public class TrcGainSchedule
+{
+    private static final String moduleName = "TrcGainSchedule";
+    private static final boolean debugEnabled = false;
+    private TrcDbgTrace dbgTrace = null;
+
+    public enum KeyType
+    {
+        ERROR_MAGNITUDE,
+        SETPOINT,
+        EXTERNAL
+    }   //enum KeyType
+
+    public interface ScheduleInput
+    {
+        public double getScheduleKey(TrcGainSchedule schedule);
+    }   //interface ScheduleInput
+
+    //
+    // The tables hold scale factors, not gains: the controller multiplies
+    // its own Kp/Ki/Kd/Kf by the interpolated factors, so 1.0 means the
+    // tuned gain. The controller's gains stay the ones set with setPID or
+    // by a tuner, and the schedule only shapes them across the operating
+    // range (e.g. {2.0, 1.0} to double Kp on short moves).
+    //
+    private KeyType keyType;
+    private ScheduleInput scheduleInput;
+    private double[] keys;
+    private double[] kPs;
+    private double[] kIs;
+    private double[] kDs;
+    private double[] kFs;
+    private int segment;
+    private double kP;
+    private double kI;
+    private double kD;
+    private double kF;
+
+    public TrcGainSchedule(
+            final String instanceName,
+            KeyType keyType,
+            ScheduleInput scheduleInput,
+            double[] keys,
+            double[] kPs,
+            double[] kIs,
+            double[] kDs,
+            double[] kFs)
+    {
+        if (debugEnabled)
+        {
+            dbgTrace = new TrcDbgTrace(
+                    moduleName + "." + instanceName,
+                    false,
+                    TrcDbgTrace.TraceLevel.API,
+                    TrcDbgTrace.MsgLevel.INFO);
+        }
+
+        if (keyType == KeyType.EXTERNAL && scheduleInput == null)
+        {
+            throw new NullPointerException(
+                    "External schedule must provide ScheduleInput.");
+        }
+
+        if (keys == null || keys.length == 0 ||
+            kPs.length != keys.length || kIs.length != keys.length ||
+            kDs.length != keys.length || kFs.length != keys.length)
+        {
+            throw new IllegalArgumentException(
+                    "Breakpoint and gain tables must have the same non-zero length.");
+        }
+
+        for (int i = 1; i < keys.length; i++)
+        {
+            if (keys[i] <= keys[i - 1])
+            {
+                throw new IllegalArgumentException(
+                        "Breakpoints must be in strictly increasing order.");
+            }
+        }
+
+        this.keyType = keyType;
+        this.scheduleInput = scheduleInput;
+        this.keys = keys.clone();
+        this.kPs = kPs.clone();
+        this.kIs = kIs.clone();
+        this.kDs = kDs.clone();
+        this.kFs = kFs.clone();
+        segment = 0;
+        evaluate(keys[0]);
+    }   //TrcGainSchedule
+
+    public KeyType getKeyType()
+    {
+        return keyType;
+    }   //getKeyType
+
+    public double getKey(double setPoint, double error)
+    {
+        double key;
+
+        switch (keyType)
+        {
+            case SETPOINT:
+                key = setPoint;
+                break;
+
+            case EXTERNAL:
+                key = scheduleInput.getScheduleKey(this);
+                break;
+
+            case ERROR_MAGNITUDE:
+            default:
+                key = Math.abs(error);
+                break;
+        }
+
+        return key;
+    }   //getKey
+
+    public void evaluate(double key)
+    {
+        final String funcName = "evaluate";
+        int lastIndex = keys.length - 1;
+
+        if (key <= keys[0] || lastIndex == 0)
+        {
+            segment = 0;
+            kP = kPs[0];
+            kI = kIs[0];
+            kD = kDs[0];
+            kF = kFs[0];
+        }
+        else if (key >= keys[lastIndex])
+        {
+            segment = lastIndex - 1;
+            kP = kPs[lastIndex];
+            kI = kIs[lastIndex];
+            kD = kDs[lastIndex];
+            kF = kFs[lastIndex];
+        }
+        else
+        {
+            segment = findSegment(key);
+            int i = segment;
+            double t = (key - keys[i])/(keys[i + 1] - keys[i]);
+            kP = kPs[i] + (kPs[i + 1] - kPs[i])*t;
+            kI = kIs[i] + (kIs[i + 1] - kIs[i])*t;
+            kD = kDs[i] + (kDs[i + 1] - kDs[i])*t;
+            kF = kFs[i] + (kFs[i + 1] - kFs[i])*t;
+        }
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceInfo(
+                    funcName, "key=%f,seg=%d: Kp=%f,Ki=%f,Kd=%f,Kf=%f",
+                    key, segment, kP, kI, kD, kF);
+        }
+    }   //evaluate
+
+    public double getKp()
+    {
+        return kP;
+    }   //getKp
+
+    public double getKi()
+    {
+        return kI;
+    }   //getKi
+
+    public double getKd()
+    {
+        return kD;
+    }   //getKd
+
+    public double getKf()
+    {
+        return kF;
+    }   //getKf
+
+    private int findSegment(double key)
+    {
+        //
+        // The key usually moves smoothly from tick to tick, so try the
+        // segment used last time and its neighbors before a binary search.
+        // The caller guarantees keys[0] < key < keys[last].
+        //
+        int seg = segment;
+
+        if (key >= keys[seg] && key < keys[seg + 1])
+        {
+            return seg;
+        }
+        else if (seg + 2 < keys.length &&
+                 key >= keys[seg + 1] && key < keys[seg + 2])
+        {
+            return seg + 1;
+        }
+        else if (seg > 0 && key >= keys[seg - 1] && key < keys[seg])
+        {
+            return seg - 1;
+        }
+
+        int low = 0;
+        int high = keys.length - 1;
+        while (high - low > 1)
+        {
+            int mid = (low + high) >>> 1;
+            if (key < keys[mid])
+            {
+                high = mid;
+            }
+            else
+            {
+                low = mid;
+            }
+        }
+
+        return low;
+    }   //findSegment
+
+}   //class TrcGainSchedule
@@ -0,0 +1,114 @@
+package trclib;
+
+public class TrcHeadingFilter
+{
+    private static final String moduleName = "TrcHeadingFilter";
+    private static final boolean debugEnabled = false;
+    private TrcDbgTrace dbgTrace = null;
+
+    private static final double SLIP_GATE = 9.0;
+
+    //
+    // Fuses the heading change seen by the gyro with the one derived from
+    // the wheel encoders, one tick at a time. Both are noisy measurements
+    // of the same rotation, so the fused change is their inverse variance
+    // weighted average (a one state Kalman update), and the variance of
+    // the heading grows by the variance of that average every tick:
+    //
+    //  w = encVar/(gyroVar + encVar)
+    //  delta = w*gyroDelta + (1 - w)*encDelta
+    //  variance += gyroVar*encVar/(gyroVar + encVar)
+    //
+    // The gyro drifts slowly but never slips, the wheels don't drift but
+    // slip when pushed or turning hard. When the two disagree by more
+    // than three standard deviations of their combined noise, we call it
+    // slip and inflate the encoder variance by slipGain times the squared
+    // disagreement, so the gyro takes over until they agree again.
+    //
+    private double gyroVariance;
+    private double encoderVariance;
+    private double slipGain;
+    private double variance;
+    private double gyroWeight;
+
+    public TrcHeadingFilter(
+            final String instanceName,
+            double gyroVariance,
+            double encoderVariance,
+            double slipGain)
+    {
+        if (debugEnabled)
+        {
+            dbgTrace = new TrcDbgTrace(
+                    moduleName + "." + instanceName,
+                    false,
+                    TrcDbgTrace.TraceLevel.API,
+                    TrcDbgTrace.MsgLevel.INFO);
+        }
+
+        if (gyroVariance <= 0.0 || encoderVariance <= 0.0 || slipGain < 0.0)
+        {
+            throw new IllegalArgumentException(
+                    "Variances must be positive and slip gain non-negative.");
+        }
+
+        this.gyroVariance = gyroVariance;
+        this.encoderVariance = encoderVariance;
+        this.slipGain = slipGain;
+        variance = 0.0;
+        gyroWeight = 0.5;
+    }   //TrcHeadingFilter
+
+    public void reset(double variance)
+    {
+        final String funcName = "reset";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "variance=%f", variance);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        this.variance = variance;
+    }   //reset
+
+    public double getVariance()
+    {
+        return variance;
+    }   //getVariance
+
+    public double getGyroWeight()
+    {
+        return gyroWeight;
+    }   //getGyroWeight
+
+    public double update(double gyroDelta, double encoderDelta)
+    {
+        final String funcName = "update";
+        double disagreement = gyroDelta - encoderDelta;
+        double encVar = encoderVariance;
+        double disagreementSq = disagreement*disagreement;
+
+        if (disagreementSq > SLIP_GATE*(gyroVariance + encoderVariance))
+        {
+            encVar += slipGain*disagreementSq;
+        }
+        double sumVar = gyroVariance + encVar;
+
+        gyroWeight = encVar/sumVar;
+        variance += gyroVariance*encVar/sumVar;
+        double delta = gyroWeight*gyroDelta + (1.0 - gyroWeight)*encoderDelta;
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceInfo(
+                    funcName, "gyro=%f,enc=%f,weight=%f,delta=%f,var=%f",
+                    gyroDelta, encoderDelta, gyroWeight, delta, variance);
+        }
+
+        return delta;
+    }   //update
+
+}   //class TrcHeadingFilter
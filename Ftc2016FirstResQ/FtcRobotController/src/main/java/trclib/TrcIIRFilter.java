@@ -54,4 +54,19 @@ public class TrcIIRFilter
         return filteredData;
     }   //filter
 
+    public void reset(double data)
+    {
+        final String funcName = "reset";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "data=%f", data);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        filteredData = data;
+    }   //reset
+
 }   //class TrcIIRFilter
@@ -0,0 +1,382 @@
+package trclib;
+
+import hallib.HalTimer;
+
+public class TrcLqrController implements TrcController
+{
+    private static final String moduleName = "TrcLqrController";
+    private static final boolean debugEnabled = false;
+    private TrcDbgTrace dbgTrace = null;
+
+    //
+    // Full state feedback on position and velocity:
+    //
+    //  u = kPos*(target - position) - kVel*velocity + kF
+    //
+    // The gains come from solveGains() (discrete-time LQR) run offline on a
+    // plant model, so the robot only does two multiplies per tick. kF is a
+    // constant feedforward (e.g. the power that holds an arm against
+    // gravity), not a multiple of the target: position feedback already
+    // drives the error to zero and scaling the target would only bias it.
+    //
+    public interface StateInput
+    {
+        public double getPosition();
+        public double getVelocity();
+    }   //interface StateInput
+
+    private String instanceName;
+    private double kPos;
+    private double kVel;
+    private double kF;
+    private double tolerance;
+    private double velTolerance;
+    private double settlingTime;
+    private StateInput stateInput;
+    private int options;
+
+    private double minOutput;
+    private double maxOutput;
+    private double setPoint;
+    private double prevError;
+    private double velocity;
+    private double settlingStartTime;
+    private double output;
+
+    public TrcLqrController(
+            final String instanceName,
+            double       kPos,
+            double       kVel,
+            double       kF,
+            double       tolerance,
+            double       velTolerance,
+            double       settlingTime,
+            StateInput   stateInput,
+            int          options)
+    {
+        if (debugEnabled)
+        {
+            dbgTrace = new TrcDbgTrace(
+                    moduleName + "." + instanceName,
+                    false,
+                    TrcDbgTrace.TraceLevel.API,
+                    TrcDbgTrace.MsgLevel.INFO);
+        }
+
+        if (stateInput == null)
+        {
+            throw new NullPointerException("StateInput must be provided.");
+        }
+
+        this.instanceName = instanceName;
+        this.kPos = kPos;
+        this.kVel = kVel;
+        this.kF = kF;
+        this.tolerance = tolerance;
+        this.velTolerance = velTolerance;
+        this.settlingTime = settlingTime;
+        this.stateInput = stateInput;
+        this.options = options;
+        minOutput = -1.0;
+        maxOutput = 1.0;
+        setPoint = 0.0;
+        prevError = 0.0;
+        velocity = 0.0;
+        settlingStartTime = 0.0;
+        output = 0.0;
+    }   //TrcLqrController
+
+    public void setGains(double kPos, double kVel, double kF)
+    {
+        final String funcName = "setGains";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "kPos=%f,kVel=%f,kF=%f", kPos, kVel, kF);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        this.kPos = kPos;
+        this.kVel = kVel;
+        this.kF = kF;
+    }   //setGains
+
+    //
+    // Implements TrcController
+    //
+    public String getName()
+    {
+        return instanceName;
+    }   //getName
+
+    public void setOutputRange(double minOutput, double maxOutput)
+    {
+        final String funcName = "setOutputRange";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "min=%f,max=%f", minOutput, maxOutput);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        this.minOutput = minOutput;
+        this.maxOutput = maxOutput;
+    }   //setOutputRange
+
+    public double getTarget()
+    {
+        return setPoint;
+    }   //getTarget
+
+    public void setTarget(double target)
+    {
+        final String funcName = "setTarget";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "target=%f", target);
+        }
+
+        double position = stateInput.getPosition();
+        setPoint = target;
+        if ((options & TrcPidController.PIDCTRLO_ABS_SETPT) == 0)
+        {
+            setPoint += position;
+        }
+        prevError = calculateError(position);
+        velocity = stateInput.getVelocity();
+        settlingStartTime = HalTimer.getCurrentTime();
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+    }   //setTarget
+
+    public double getError()
+    {
+        return prevError;
+    }   //getError
+
+    public void reset()
+    {
+        final String funcName = "reset";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(funcName, TrcDbgTrace.TraceLevel.API);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        setPoint = 0.0;
+        prevError = 0.0;
+        velocity = 0.0;
+        output = 0.0;
+    }   //reset
+
+    public boolean isOnTarget()
+    {
+        final String funcName = "isOnTarget";
+        boolean onTarget = false;
+
+        if (Math.abs(prevError) > tolerance)
+        {
+            settlingStartTime = HalTimer.getCurrentTime();
+        }
+        else if (Math.abs(velocity) <= velTolerance ||
+                 HalTimer.getCurrentTime() >= settlingStartTime + settlingTime)
+        {
+            //
+            // We know the velocity, so a stopped mechanism within tolerance
+            // is done without waiting out the settling time.
+            //
+            onTarget = true;
+        }
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceInfo(
+                    funcName, "error=%f,vel=%f,onTarget=%s",
+                    prevError, velocity, Boolean.toString(onTarget));
+        }
+
+        return onTarget;
+    }   //isOnTarget
+
+    public double getOutput()
+    {
+        final String funcName = "getOutput";
+
+        double error = calculateError(stateInput.getPosition());
+        velocity = stateInput.getVelocity();
+        double vel = (options & TrcPidController.PIDCTRLO_INVERTED) != 0?
+                -velocity: velocity;
+
+        output = kPos*error - kVel*vel + kF;
+        prevError = error;
+        if (output > maxOutput)
+        {
+            output = maxOutput;
+        }
+        else if (output < minOutput)
+        {
+            output = minOutput;
+        }
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceInfo(
+                    funcName, "error=%f,vel=%f,output=%f",
+                    error, velocity, output);
+        }
+
+        return output;
+    }   //getOutput
+
+    public void setAppliedOutput(double appliedOutput)
+    {
+        //
+        // Pure state feedback has no integrator to wind up.
+        //
+    }   //setAppliedOutput
+
+    private double calculateError(double position)
+    {
+        double error = setPoint - position;
+        return (options & TrcPidController.PIDCTRLO_INVERTED) != 0?
+                -error: error;
+    }   //calculateError
+
+    //
+    // Offline gain solver.
+    //
+
+    public static double[] solveGains(
+            double[][] a,
+            double[] b,
+            double[][] q,
+            double r,
+            int maxIterations,
+            double convergence)
+    {
+        //
+        // Iterate the discrete algebraic Riccati equation for a single input
+        // system x[k+1] = A x[k] + B u[k] with cost sum(x'Qx + r u^2):
+        //
+        //  K = (r + B'PB)^-1 B'PA
+        //  P = Q + A'PA - A'PB K
+        //
+        // until P stops changing, and return the feedback gain row K
+        // (u = -K x).
+        //
+        int n = b.length;
+        double[][] p = new double[n][n];
+        double[] k = new double[n];
+
+        for (int i = 0; i < n; i++)
+        {
+            System.arraycopy(q[i], 0, p[i], 0, n);
+        }
+
+        for (int iter = 0; iter < maxIterations; iter++)
+        {
+            double[] pb = new double[n];
+            for (int i = 0; i < n; i++)
+            {
+                for (int j = 0; j < n; j++)
+                {
+                    pb[i] += p[i][j]*b[j];
+                }
+            }
+
+            double denom = r;
+            for (int i = 0; i < n; i++)
+            {
+                denom += b[i]*pb[i];
+            }
+
+            //
+            // B'PA is (PB)'A since P is symmetric.
+            //
+            for (int j = 0; j < n; j++)
+            {
+                double sum = 0.0;
+                for (int i = 0; i < n; i++)
+                {
+                    sum += pb[i]*a[i][j];
+                }
+                k[j] = sum/denom;
+            }
+
+            double[][] pa = new double[n][n];
+            for (int i = 0; i < n; i++)
+            {
+                for (int j = 0; j < n; j++)
+                {
+                    double sum = 0.0;
+                    for (int m = 0; m < n; m++)
+                    {
+                        sum += p[i][m]*a[m][j];
+                    }
+                    pa[i][j] = sum;
+                }
+            }
+
+            double maxChange = 0.0;
+            double[][] nextP = new double[n][n];
+            for (int i = 0; i < n; i++)
+            {
+                for (int j = 0; j < n; j++)
+                {
+                    double atpa = 0.0;
+                    double atpb = 0.0;
+                    for (int m = 0; m < n; m++)
+                    {
+                        atpa += a[m][i]*pa[m][j];
+                        atpb += a[m][i]*pb[m];
+                    }
+                    nextP[i][j] = q[i][j] + atpa - atpb*k[j];
+                    maxChange = Math.max(
+                            maxChange, Math.abs(nextP[i][j] - p[i][j]));
+                }
+            }
+            p = nextP;
+
+            if (maxChange < convergence)
+            {
+                break;
+            }
+        }
+
+        return k;
+    }   //solveGains
+
+    public static double[] solveMotorGains(
+            double speedGain,
+            double timeConstant,
+            double period,
+            double positionWeight,
+            double velocityWeight,
+            double powerWeight)
+    {
+        //
+        // Discretized (forward Euler) model of a motor where power drives
+        // velocity through a first order lag, same as TrcSimMotorPlant:
+        //
+        //  [pos]       [1  dt        ] [pos]   [0            ]
+        //  [vel]    =  [0  1 - dt/tau] [vel] + [gain*dt/tau  ] u
+        //
+        double[][] a = {{1.0, period}, {0.0, 1.0 - period/timeConstant}};
+        double[] b = {0.0, speedGain*period/timeConstant};
+        double[][] q = {{positionWeight, 0.0}, {0.0, velocityWeight}};
+
+        return solveGains(a, b, q, powerWeight, 10000, 1.0e-9);
+    }   //solveMotorGains
+
+}   //class TrcLqrController
@@ -0,0 +1,280 @@
+package trclib;
+
+import hallib.HalSpeedController;
+
+public class TrcMotorGroup
+{
+    private static final String moduleName = "TrcMotorGroup";
+    private static final boolean debugEnabled = false;
+    private TrcDbgTrace dbgTrace = null;
+
+    //
+    // A set of motors driving one mechanism (e.g. a lift with four motors).
+    // The first motor is the reference for position and limit switches.
+    // Power is given in the group's direction. Each motor can be inverted
+    // to account for how it is mounted, and an optional sync loop trims
+    // each motor's power toward the group's average position so the motors
+    // don't fight each other. All motors are written in a single pass per
+    // call, and a motor is only written when its power actually changes
+    // to save bus traffic, so the motors must only be driven through the
+    // group. The sync loop reads the encoders at most once per control
+    // cycle no matter how often the power is set.
+    //
+    private TrcMotorPosition motorPosition;
+    private HalSpeedController[] motors;
+    private double[] directions;
+    private double[] positions;
+    private double[] motorPowers;
+    private boolean powersValid;
+    private boolean positionsValid;
+    private long positionTick;
+    private double avgPos;
+    private double syncKp;
+    private double maxSyncCorrection;
+    private double syncError;
+
+    public TrcMotorGroup(
+            final String instanceName,
+            TrcMotorPosition motorPosition,
+            HalSpeedController... motors)
+    {
+        if (debugEnabled)
+        {
+            dbgTrace = new TrcDbgTrace(
+                    moduleName + "." + instanceName,
+                    false,
+                    TrcDbgTrace.TraceLevel.API,
+                    TrcDbgTrace.MsgLevel.INFO);
+        }
+
+        if (motors == null || motors.length == 0)
+        {
+            throw new IllegalArgumentException("Must have at least one motor.");
+        }
+
+        for (int i = 0; i < motors.length; i++)
+        {
+            if (motors[i] == null)
+            {
+                throw new NullPointerException("Motors must not be null.");
+            }
+        }
+
+        if (motorPosition == null)
+        {
+            throw new IllegalArgumentException(
+                    "Must provide the TrcMotorPosition interface.");
+        }
+
+        this.motorPosition = motorPosition;
+        this.motors = motors.clone();
+        directions = new double[motors.length];
+        positions = new double[motors.length];
+        motorPowers = new double[motors.length];
+        for (int i = 0; i < motors.length; i++)
+        {
+            directions[i] = 1.0;
+        }
+        powersValid = false;
+        positionsValid = false;
+        positionTick = 0;
+        avgPos = 0.0;
+        syncKp = 0.0;
+        maxSyncCorrection = 0.0;
+        syncError = 0.0;
+    }   //TrcMotorGroup
+
+    public int getNumMotors()
+    {
+        return motors.length;
+    }   //getNumMotors
+
+    public HalSpeedController getMotor(int index)
+    {
+        return motors[index];
+    }   //getMotor
+
+    public TrcMotorPosition getMotorPosition()
+    {
+        return motorPosition;
+    }   //getMotorPosition
+
+    public void setInverted(int index, boolean inverted)
+    {
+        final String funcName = "setInverted";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "index=%d,inverted=%s", index, Boolean.toString(inverted));
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        directions[index] = inverted? -1.0: 1.0;
+        powersValid = false;
+        positionsValid = false;
+    }   //setInverted
+
+    public void setSyncCorrection(double syncKp, double maxSyncCorrection)
+    {
+        final String funcName = "setSyncCorrection";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "Kp=%f,maxCorrection=%f", syncKp, maxSyncCorrection);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        //
+        // Each motor gets syncKp*(average position - its position) added to
+        // its power, limited to maxSyncCorrection. Every motor needs an
+        // encoder for this. Set syncKp to zero to turn it off.
+        //
+        this.syncKp = syncKp;
+        this.maxSyncCorrection = maxSyncCorrection;
+        syncError = 0.0;
+    }   //setSyncCorrection
+
+    public double getSyncError()
+    {
+        return syncError;
+    }   //getSyncError
+
+    public double getPosition()
+    {
+        //
+        // Reuse this cycle's sync read if there was one.
+        //
+        return positionsValid && TrcTaskMgr.isCurrentTick(positionTick)?
+                positions[0]:
+                motorPosition.getMotorPosition(motors[0])*directions[0];
+    }   //getPosition
+
+    public void resetPosition()
+    {
+        final String funcName = "resetPosition";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(funcName, TrcDbgTrace.TraceLevel.API);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        for (int i = 0; i < motors.length; i++)
+        {
+            motorPosition.resetMotorPosition(motors[i]);
+        }
+        //
+        // Some controllers stop the motor on reset, so rewrite every power
+        // on the next call rather than trusting the cache.
+        //
+        powersValid = false;
+        positionsValid = false;
+        syncError = 0.0;
+    }   //resetPosition
+
+    public boolean isForwardLimitSwitchActive()
+    {
+        return directions[0] > 0.0?
+                motorPosition.isForwardLimitSwitchActive(motors[0]):
+                motorPosition.isReverseLimitSwitchActive(motors[0]);
+    }   //isForwardLimitSwitchActive
+
+    public boolean isReverseLimitSwitchActive()
+    {
+        return directions[0] > 0.0?
+                motorPosition.isReverseLimitSwitchActive(motors[0]):
+                motorPosition.isForwardLimitSwitchActive(motors[0]);
+    }   //isReverseLimitSwitchActive
+
+    public void setPower(double power)
+    {
+        final String funcName = "setPower";
+        boolean sync = syncKp != 0.0 && motors.length > 1 && power != 0.0;
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "power=%f", power);
+        }
+
+        if (sync)
+        {
+            //
+            // Only correct while moving, a stopped group would otherwise
+            // buzz the motors against each other.
+            //
+            updatePositions();
+        }
+
+        for (int i = 0; i < motors.length; i++)
+        {
+            double motorPower = power;
+
+            if (sync)
+            {
+                double correction = syncKp*(avgPos - positions[i]);
+                if (correction > maxSyncCorrection)
+                {
+                    correction = maxSyncCorrection;
+                }
+                else if (correction < -maxSyncCorrection)
+                {
+                    correction = -maxSyncCorrection;
+                }
+                motorPower += correction;
+                motorPower = motorPower > 1.0? 1.0:
+                             motorPower < -1.0? -1.0: motorPower;
+            }
+            motorPower *= directions[i];
+
+            if (!powersValid || motorPower != motorPowers[i])
+            {
+                motors[i].setPower(motorPower);
+                motorPowers[i] = motorPower;
+            }
+        }
+        powersValid = true;
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceExit(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "syncError=%f", syncError);
+        }
+    }   //setPower
+
+    private void updatePositions()
+    {
+        //
+        // isCurrentTick also fails when the task manager isn't ticking, so
+        // the positions are then read on every call instead of freezing.
+        //
+        if (positionsValid && TrcTaskMgr.isCurrentTick(positionTick))
+        {
+            return;
+        }
+
+        double minPos = Double.POSITIVE_INFINITY;
+        double maxPos = Double.NEGATIVE_INFINITY;
+        avgPos = 0.0;
+        for (int i = 0; i < motors.length; i++)
+        {
+            double pos =
+                    motorPosition.getMotorPosition(motors[i])*directions[i];
+            positions[i] = pos;
+            avgPos += pos;
+            minPos = Math.min(minPos, pos);
+            maxPos = Math.max(maxPos, pos);
+        }
+        avgPos /= motors.length;
+        syncError = maxPos - minPos;
+        positionTick = TrcTaskMgr.getTickCount();
+        positionsValid = true;
+    }   //updatePositions
+
+}   //class TrcMotorGroup
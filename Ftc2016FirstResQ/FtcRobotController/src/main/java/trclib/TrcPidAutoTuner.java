@@ -0,0 +1,462 @@
+package trclib;
+
+import hallib.HalTimer;
+
+public class TrcPidAutoTuner implements TrcTaskMgr.Task
+{
+    private static final String moduleName = "TrcPidAutoTuner";
+    private static final boolean debugEnabled = false;
+    private TrcDbgTrace dbgTrace = null;
+
+    //
+    // The first couple of relay cycles carry the start-up transient, don't
+    // use them for the measurement.
+    //
+    private static final int NUM_SKIPPED_CYCLES = 2;
+
+    public interface PowerOutput
+    {
+        public void setPower(double power);
+    }   //interface PowerOutput
+
+    public enum TuningRule
+    {
+        ZIEGLER_NICHOLS,
+        TYREUS_LUYBEN
+    }   //enum TuningRule
+
+    public enum State
+    {
+        IDLE,
+        RUNNING,
+        DONE,
+        FAILED
+    }   //enum State
+
+    private String instanceName;
+    private TrcPidController pidCtrl;
+    private TrcPidController.PidInput pidInput;
+    private PowerOutput powerOutput;
+
+    private State state;
+    private TrcEvent notifyEvent;
+    private double setPoint;
+    private double relayPower;
+    private double hysteresis;
+    private int numCycles;
+    private double timeout;
+
+    private boolean started;
+    private double startTime;
+    private double prevTime;
+    private double relayOutput;
+    private boolean switchedUp;
+    private double lastSwitchUpTime;
+    private double cycleMax;
+    private double cycleMin;
+    private int cycleCount;
+    private double periodSum;
+    private double amplitudeSum;
+    private double tickPeriodSum;
+    private int tickCount;
+
+    private double ultimateGain;
+    private double ultimatePeriod;
+    private double tickPeriod;
+
+    public TrcPidAutoTuner(
+            final String instanceName,
+            TrcPidController pidCtrl,
+            PowerOutput powerOutput)
+    {
+        if (debugEnabled)
+        {
+            dbgTrace = new TrcDbgTrace(
+                    moduleName + "." + instanceName,
+                    false,
+                    TrcDbgTrace.TraceLevel.API,
+                    TrcDbgTrace.MsgLevel.INFO);
+        }
+
+        if (pidCtrl == null || powerOutput == null)
+        {
+            throw new NullPointerException(
+                    "PID controller and PowerOutput must be provided.");
+        }
+
+        //
+        // The controller being tuned is passed to its PidInput, which
+        // commonly picks the sensor by which controller is asking.
+        //
+        this.instanceName = instanceName;
+        this.pidCtrl = pidCtrl;
+        this.pidInput = pidCtrl.getPidInput();
+        this.powerOutput = powerOutput;
+        state = State.IDLE;
+        notifyEvent = null;
+        ultimateGain = 0.0;
+        ultimatePeriod = 0.0;
+        tickPeriod = 0.0;
+    }   //TrcPidAutoTuner
+
+    public TrcPidAutoTuner(
+            final String instanceName,
+            TrcPidController pidCtrl,
+            final TrcPidMotor pidMotor)
+    {
+        this(instanceName,
+             pidCtrl,
+             new PowerOutput()
+             {
+                 public void setPower(double power)
+                 {
+                     pidMotor.setPower(power);
+                 }
+             });
+    }   //TrcPidAutoTuner
+
+    public void start(
+            double setPoint,
+            double relayPower,
+            double hysteresis,
+            int numCycles,
+            double timeout,
+            TrcEvent event)
+    {
+        final String funcName = "start";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "setPt=%f,relay=%f,hyst=%f,cycles=%d,timeout=%f,event=%s",
+                    setPoint, relayPower, hysteresis, numCycles, timeout,
+                    event != null? event.getName(): "null");
+        }
+
+        if (relayPower <= 0.0 || numCycles <= 0)
+        {
+            throw new IllegalArgumentException(
+                    "RelayPower and numCycles must be positive.");
+        }
+
+        if (state == State.RUNNING)
+        {
+            stop(State.IDLE);
+        }
+
+        this.setPoint = setPoint;
+        this.relayPower = relayPower;
+        this.hysteresis = Math.abs(hysteresis);
+        this.numCycles = numCycles;
+        this.timeout = timeout;
+        if (event != null)
+        {
+            event.clear();
+        }
+        notifyEvent = event;
+
+        started = false;
+        startTime = 0.0;
+        prevTime = 0.0;
+        relayOutput = 0.0;
+        switchedUp = false;
+        lastSwitchUpTime = 0.0;
+        cycleMax = -Double.MAX_VALUE;
+        cycleMin = Double.MAX_VALUE;
+        cycleCount = 0;
+        periodSum = 0.0;
+        amplitudeSum = 0.0;
+        tickPeriodSum = 0.0;
+        tickCount = 0;
+        ultimateGain = 0.0;
+        ultimatePeriod = 0.0;
+        tickPeriod = 0.0;
+        state = State.RUNNING;
+
+        TrcTaskMgr.registerTask(
+                instanceName,
+                this,
+                TrcTaskMgr.TaskType.STOP_TASK);
+        TrcTaskMgr.registerTask(
+                instanceName,
+                this,
+                TrcTaskMgr.TaskType.POSTPERIODIC_TASK);
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+    }   //start
+
+    public void cancel()
+    {
+        final String funcName = "cancel";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        if (state == State.RUNNING)
+        {
+            stop(State.IDLE);
+        }
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+    }   //cancel
+
+    public State getState()
+    {
+        return state;
+    }   //getState
+
+    public double getUltimateGain()
+    {
+        return ultimateGain;
+    }   //getUltimateGain
+
+    public double getUltimatePeriod()
+    {
+        return ultimatePeriod;
+    }   //getUltimatePeriod
+
+    public double[] getProposedGains(TuningRule rule)
+    {
+        final String funcName = "getProposedGains";
+
+        if (state != State.DONE)
+        {
+            throw new IllegalStateException("Autotune has not completed.");
+        }
+
+        //
+        // Both rules give continuous time gains (Kp, Ti, Td). TrcPidController
+        // is a per-tick controller with no dt in its I and D terms, so
+        // convert with the tick period measured during the run.
+        //
+        double kP, tI, tD;
+        switch (rule)
+        {
+            case TYREUS_LUYBEN:
+                kP = ultimateGain/2.2;
+                tI = 2.2*ultimatePeriod;
+                tD = ultimatePeriod/6.3;
+                break;
+
+            case ZIEGLER_NICHOLS:
+            default:
+                kP = 0.6*ultimateGain;
+                tI = 0.5*ultimatePeriod;
+                tD = 0.125*ultimatePeriod;
+                break;
+        }
+
+        double[] gains = new double[3];
+        gains[0] = kP;
+        gains[1] = kP*tickPeriod/tI;
+        gains[2] = kP*tD/tickPeriod;
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceInfo(
+                    funcName, "%s: Kp=%f,Ki=%f,Kd=%f",
+                    rule.toString(), gains[0], gains[1], gains[2]);
+        }
+
+        return gains;
+    }   //getProposedGains
+
+    public void applyGains(TuningRule rule)
+    {
+        double[] gains = getProposedGains(rule);
+        pidCtrl.setPID(gains[0], gains[1], gains[2], pidCtrl.getKf());
+    }   //applyGains
+
+    public void update(double currTime)
+    {
+        final String funcName = "update";
+
+        if (state != State.RUNNING)
+        {
+            return;
+        }
+
+        if (!started)
+        {
+            started = true;
+            startTime = currTime;
+        }
+        else
+        {
+            tickPeriodSum += currTime - prevTime;
+            tickCount++;
+        }
+        prevTime = currTime;
+
+        double input = pidInput.getInput(pidCtrl);
+        double error = setPoint - input;
+
+        if (input > cycleMax)
+        {
+            cycleMax = input;
+        }
+        if (input < cycleMin)
+        {
+            cycleMin = input;
+        }
+
+        if (relayOutput == 0.0)
+        {
+            relayOutput = error >= 0.0? relayPower: -relayPower;
+        }
+        else if (relayOutput > 0.0 && error < -hysteresis)
+        {
+            relayOutput = -relayPower;
+        }
+        else if (relayOutput < 0.0 && error > hysteresis)
+        {
+            //
+            // Each switch to positive power closes one full relay cycle.
+            //
+            relayOutput = relayPower;
+            if (switchedUp)
+            {
+                cycleCount++;
+                if (cycleCount > NUM_SKIPPED_CYCLES)
+                {
+                    periodSum += currTime - lastSwitchUpTime;
+                    amplitudeSum += (cycleMax - cycleMin)/2.0;
+                }
+            }
+            switchedUp = true;
+            lastSwitchUpTime = currTime;
+            cycleMax = input;
+            cycleMin = input;
+        }
+
+        if (cycleCount >= NUM_SKIPPED_CYCLES + numCycles)
+        {
+            double amplitude = amplitudeSum/numCycles;
+            ultimatePeriod = periodSum/numCycles;
+            tickPeriod = tickPeriodSum/tickCount;
+            //
+            // Describing function of a relay with hysteresis:
+            //  Ku = 4d/(pi*sqrt(a^2 - e^2))
+            //
+            double effAmplitude = Math.sqrt(
+                    Math.max(amplitude*amplitude - hysteresis*hysteresis, 0.0));
+            if (effAmplitude > 0.0 && ultimatePeriod > 0.0 && tickPeriod > 0.0)
+            {
+                ultimateGain = 4.0*relayPower/(Math.PI*effAmplitude);
+                stop(State.DONE);
+            }
+            else
+            {
+                stop(State.FAILED);
+            }
+
+            if (debugEnabled)
+            {
+                dbgTrace.traceInfo(
+                        funcName, "%s: Ku=%f,Pu=%f,dt=%f",
+                        state.toString(), ultimateGain, ultimatePeriod,
+                        tickPeriod);
+            }
+        }
+        else if (timeout != 0.0 && currTime - startTime >= timeout)
+        {
+            stop(State.FAILED);
+        }
+        else
+        {
+            powerOutput.setPower(relayOutput);
+        }
+    }   //update
+
+    private void stop(State newState)
+    {
+        TrcTaskMgr.unregisterTask(
+                this,
+                TrcTaskMgr.TaskType.STOP_TASK);
+        TrcTaskMgr.unregisterTask(
+                this,
+                TrcTaskMgr.TaskType.POSTPERIODIC_TASK);
+        powerOutput.setPower(0.0);
+        state = newState;
+
+        if (notifyEvent != null)
+        {
+            if (newState == State.DONE)
+            {
+                notifyEvent.set(true);
+            }
+            else
+            {
+                notifyEvent.cancel();
+            }
+            notifyEvent = null;
+        }
+    }   //stop
+
+    //
+    // Implements TrcTaskMgr.Task
+    //
+    public void startTask(TrcRobot.RunMode runMode)
+    {
+    }   //startTask
+
+    public void stopTask(TrcRobot.RunMode runMode)
+    {
+        final String funcName = "stopTask";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.TASK,
+                    "mode=%s", runMode.toString());
+        }
+
+        cancel();
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.TASK);
+        }
+    }   //stopTask
+
+    public void prePeriodicTask(TrcRobot.RunMode runMode)
+    {
+    }   //prePeriodicTask
+
+    public void postPeriodicTask(TrcRobot.RunMode runMode)
+    {
+        final String funcName = "postPeriodic";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.TASK,
+                    "mode=%s", runMode.toString());
+        }
+
+        update(HalTimer.getCurrentTime());
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.TASK);
+        }
+    }   //postPeriodicTask
+
+    public void preContinuousTask(TrcRobot.RunMode runMode)
+    {
+    }   //preContinuousTask
+
+    public void postContinuousTask(TrcRobot.RunMode runMode)
+    {
+    }   //postContinuousTask
+
+}   //class TrcPidAutoTuner
@@ -3,7 +3,7 @@ package trclib;
 import hallib.HalDashboard;
 import hallib.HalTimer;
 
-public class TrcPidController
+public class TrcPidController implements TrcController
 {
     private static final String moduleName = "TrcPidController";
     private static final boolean debugEnabled = false;
@@ -14,21 +14,40 @@ public class TrcPidController
     public static final int PIDCTRLO_ABS_SETPT  = (1 << 1);
     public static final int PIDCTRLO_SPEED_CTRL = (1 << 2);
     public static final int PIDCTRLO_NO_OSC     = (1 << 3);
+    public static final int PIDCTRLO_CONTINUOUS = (1 << 4);
 
     public interface PidInput
     {
         public double getInput(TrcPidController pidCtrl);
     }   //interface PidInput
 
+    public enum AntiWindupMode
+    {
+        CLAMP_INTEGRAL,
+        BACK_CALCULATION,
+        CONDITIONAL_INTEGRATION
+    }   //enum AntiWindupMode
+
+    private String instanceName;
     private double kP;
     private double kI;
     private double kD;
     private double kF;
+    private double pGain;
+    private double iGain;
+    private double dGain;
+    private double fGain;
     private double tolerance;
     private double settlingTime;
+    private double rateTolerance;
+    private TrcIIRFilter rateFilter;
     private PidInput pidInput;
     private int options;
 
+    private AntiWindupMode antiWindupMode;
+    private double backCalcGain;
+    private double integralZone;
+
     private double minInput;
     private double maxInput;
     private double minOutput;
@@ -37,8 +56,20 @@ public class TrcPidController
     private double prevError;
     private double totalError;
     private double settlingStartTime;
+    private double prevRateInput;
+    private double prevRateTime;
+    private boolean rateSampleValid;
+    private double inputRate;
+    private boolean inputRateValid;
     private double setPoint;
     private double output;
+    private double unclampedOutput;
+    private double appliedOutput;
+    private double lastInput;
+    private long lastInputTick;
+    private boolean lastInputValid;
+    private TrcPidRecorder recorder;
+    private TrcGainSchedule gainSchedule;
 
     public TrcPidController(
             final String instanceName,
@@ -61,14 +92,24 @@ public class TrcPidController
         }
 
         dashboard = HalDashboard.getInstance();
+        this.instanceName = instanceName;
         this.kP = kP;
         this.kI = kI;
         this.kD = kD;
         this.kF = kF;
+        this.pGain = kP;
+        this.iGain = kI;
+        this.dGain = kD;
+        this.fGain = kF;
         this.tolerance = tolerance;
         this.settlingTime = settlingTime;
+        this.rateTolerance = 0.0;
+        this.rateFilter = new TrcIIRFilter(1.0);
         this.pidInput = pidInput;
         this.options = options;
+        this.antiWindupMode = AntiWindupMode.CLAMP_INTEGRAL;
+        this.backCalcGain = 0.0;
+        this.integralZone = 0.0;
         this.minInput = 0.0;
         this.maxInput = 0.0;
         this.minOutput = -1.0;
@@ -76,16 +117,48 @@ public class TrcPidController
         this.prevError = 0.0;
         this.totalError = 0.0;
         this.settlingStartTime = 0.0;
+        this.prevRateInput = 0.0;
+        this.prevRateTime = 0.0;
+        this.rateSampleValid = false;
+        this.inputRate = 0.0;
+        this.inputRateValid = false;
         this.setPoint = 0.0;
         this.output = 0.0;
+        this.unclampedOutput = 0.0;
+        this.appliedOutput = 0.0;
+        this.lastInput = 0.0;
+        this.lastInputTick = 0;
+        this.lastInputValid = false;
+        this.recorder = null;
+        this.gainSchedule = null;
     }   //TrcPidController
 
+    public PidInput getPidInput()
+    {
+        return pidInput;
+    }   //getPidInput
+
+    public String getName()
+    {
+        final String funcName = "getName";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(funcName, TrcDbgTrace.TraceLevel.API);
+            dbgTrace.traceExit(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "=%s", instanceName);
+        }
+
+        return instanceName;
+    }   //getName
+
     public void displayPidInfo(int lineNum)
     {
         dashboard.displayPrintf(
                 lineNum,
                 "Target=%6.1f, Input=%6.1f, Error=%6.1f",
-                setPoint, pidInput.getInput(this), prevError);
+                setPoint, getTickInput(), prevError);
         dashboard.displayPrintf(
                 lineNum + 1,
                 "output=%6.3f, minOutput=%6.3f, maxOutput=%6.3f",
@@ -101,7 +174,7 @@ public class TrcPidController
             dbgTrace.traceInfo(
                     funcName,
                     "Target=%6.1f, Input=%6.1f, Error=%6.1f, Output=%6.3f(%6.3f/%5.3f)",
-                    setPoint, pidInput.getInput(this), prevError, output,
+                    setPoint, getTickInput(), prevError, output,
                     minOutput, maxOutput);
         }
     }   //printPidInfo
@@ -178,6 +251,7 @@ public class TrcPidController
         }
 
         this.kP = kP;
+        updateGains();
     }   //setKp
 
     public void setKi(double kI)
@@ -193,6 +267,7 @@ public class TrcPidController
         }
 
         this.kI = kI;
+        updateGains();
     }   //setKi
 
     public void setKd(double kD)
@@ -208,6 +283,7 @@ public class TrcPidController
         }
 
         this.kD = kD;
+        updateGains();
     }   //setKd
 
     public void setKf(double kF)
@@ -223,6 +299,7 @@ public class TrcPidController
         }
 
         this.kF = kF;
+        updateGains();
     }   //setKf
 
     public void setPID(double kP, double kI, double kD, double kF)
@@ -242,6 +319,7 @@ public class TrcPidController
         this.kI = kI;
         this.kD = kD;
         this.kF = kF;
+        updateGains();
     }   //setPID
 
     public void setInputRange(double minInput, double maxInput)
@@ -278,6 +356,127 @@ public class TrcPidController
         this.maxOutput = maxOutput;
     }   //setOutputRange
 
+    public void setAntiWindup(AntiWindupMode mode, double backCalcGain)
+    {
+        final String funcName = "setAntiWindup";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "mode=%s,backCalcGain=%f", mode.toString(), backCalcGain);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        this.antiWindupMode = mode;
+        this.backCalcGain = backCalcGain;
+    }   //setAntiWindup
+
+    public void setIntegralZone(double integralZone)
+    {
+        final String funcName = "setIntegralZone";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "iZone=%f", integralZone);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        this.integralZone = Math.abs(integralZone);
+    }   //setIntegralZone
+
+    public void setAppliedOutput(double appliedOutput)
+    {
+        final String funcName = "setAppliedOutput";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "applied=%f", appliedOutput);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        this.appliedOutput = appliedOutput;
+    }   //setAppliedOutput
+
+    public void setRateTolerance(double rateTolerance, double filterWeight)
+    {
+        final String funcName = "setRateTolerance";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "rateTolerance=%f,weight=%f", rateTolerance, filterWeight);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        if (filterWeight <= 0.0 || filterWeight > 1.0)
+        {
+            throw new IllegalArgumentException(
+                    "Weight must be a positive fraction within 1.0.");
+        }
+
+        this.rateTolerance = Math.abs(rateTolerance);
+        this.rateFilter = new TrcIIRFilter(filterWeight);
+    }   //setRateTolerance
+
+    public double getInputRate()
+    {
+        final String funcName = "getInputRate";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(funcName, TrcDbgTrace.TraceLevel.API);
+            dbgTrace.traceExit(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "=%f", inputRate);
+        }
+
+        return inputRate;
+    }   //getInputRate
+
+    public void setRecorder(TrcPidRecorder recorder)
+    {
+        final String funcName = "setRecorder";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "recorder=%s", recorder != null? "enabled": "null");
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        this.recorder = recorder;
+    }   //setRecorder
+
+    public TrcPidRecorder getRecorder()
+    {
+        return recorder;
+    }   //getRecorder
+
+    public void setGainSchedule(TrcGainSchedule gainSchedule)
+    {
+        final String funcName = "setGainSchedule";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "schedule=%s",
+                    gainSchedule != null?
+                            gainSchedule.getKeyType().toString(): "null");
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        this.gainSchedule = gainSchedule;
+        updateGains();
+    }   //setGainSchedule
+
     public double getTarget()
     {
         final String funcName = "getTarget";
@@ -304,16 +503,33 @@ public class TrcPidController
                     "target=%f", target);
         }
 
-        double input = pidInput.getInput(this);
+        double input = readInput();
         setPoint = target;
-        if ((options & PIDCTRLO_ABS_SETPT) == 0)
+        //
+        // A speed target is never relative to the current speed.
+        //
+        if ((options & (PIDCTRLO_ABS_SETPT | PIDCTRLO_SPEED_CTRL)) == 0)
         {
             setPoint += input;
         }
 
         if (maxInput > minInput)
         {
-            if (setPoint > maxInput)
+            if ((options & PIDCTRLO_CONTINUOUS) != 0)
+            {
+                //
+                // The input wraps around (e.g. heading), so wrap the
+                // setpoint back into the input range instead of clamping it.
+                //
+                double range = maxInput - minInput;
+                setPoint = (setPoint - minInput)%range;
+                if (setPoint < 0.0)
+                {
+                    setPoint += range;
+                }
+                setPoint += minInput;
+            }
+            else if (setPoint > maxInput)
             {
                 setPoint = maxInput;
             }
@@ -323,13 +539,18 @@ public class TrcPidController
             }
         }
 
-        prevError = setPoint - input;
-        if ((options & PIDCTRLO_INVERTED) != 0)
-        {
-            prevError = -prevError;
-        }
+        prevError = calculateError(input);
         totalError = 0.0;
+        unclampedOutput = 0.0;
+        appliedOutput = 0.0;
         settlingStartTime = HalTimer.getCurrentTime();
+        rateSampleValid = false;
+        inputRateValid = false;
+        inputRate = 0.0;
+        if (rateTolerance > 0.0)
+        {
+            updateInputRate(input);
+        }
 
         if (debugEnabled)
         {
@@ -366,6 +587,9 @@ public class TrcPidController
         totalError = 0.0;
         setPoint = 0.0;
         output = 0.0;
+        unclampedOutput = 0.0;
+        appliedOutput = 0.0;
+        lastInputValid = false;
     }   //reset
 
     public boolean isOnTarget()
@@ -381,7 +605,14 @@ public class TrcPidController
 
         if ((options & PIDCTRLO_NO_OSC) != 0)
         {
-            if (Math.abs(prevError) <= tolerance)
+            //
+            // No settling time to wait out, but with a rate tolerance the
+            // input must also have stopped, not just be passing through
+            // the target.
+            //
+            if (Math.abs(prevError) <= tolerance &&
+                (rateTolerance <= 0.0 ||
+                 inputRateValid && Math.abs(inputRate) <= rateTolerance))
             {
                 onTarget = true;
             }
@@ -390,6 +621,15 @@ public class TrcPidController
         {
             settlingStartTime = HalTimer.getCurrentTime();
         }
+        else if (rateTolerance > 0.0 && inputRateValid &&
+                 Math.abs(inputRate) <= rateTolerance)
+        {
+            //
+            // Within tolerance and the input has stopped moving, no need to
+            // wait out the rest of the settling time.
+            //
+            onTarget = true;
+        }
         else if (HalTimer.getCurrentTime() >= settlingStartTime + settlingTime)
         {
             onTarget = true;
@@ -414,34 +654,83 @@ public class TrcPidController
             dbgTrace.traceEnter(funcName, TrcDbgTrace.TraceLevel.API);
         }
 
-        double error = setPoint - pidInput.getInput(this);
-        if ((options & PIDCTRLO_INVERTED) != 0)
+        double input = getTickInput();
+        if (gainSchedule != null)
         {
-            error = -error;
+            applyGainSchedule(input);
+        }
+        if (rateTolerance > 0.0)
+        {
+            updateInputRate(input);
         }
+        double error = calculateError(input);
 
-        if (kI != 0.0)
+        double pTerm = pGain*error;
+        double dTerm = dGain*(error - prevError);
+        double fTerm = fGain*setPoint;
+
+        if (iGain != 0.0)
         {
-            double potentialGain = (totalError + error)*kI;
-            if (potentialGain >= maxOutput)
-            {
-                totalError = maxOutput/kI;
-            }
-            else if (potentialGain > minOutput)
+            if (integralZone > 0.0 && Math.abs(error) > integralZone)
             {
-                totalError += error;
+                //
+                // Too far from the target for the I term to help, let P do
+                // the work and only start integrating once we get close.
+                //
+                totalError = 0.0;
             }
             else
             {
-                totalError = minOutput/kI;
+                switch (antiWindupMode)
+                {
+                    case BACK_CALCULATION:
+                        //
+                        // Bleed off the part of last tick's output that could
+                        // not be applied, either by our own output limits or
+                        // by the clamping downstream (see setAppliedOutput).
+                        //
+                        totalError +=
+                                backCalcGain*(appliedOutput - unclampedOutput)/iGain;
+                        totalError += error;
+                        break;
+
+                    case CONDITIONAL_INTEGRATION:
+                        //
+                        // Stop integrating while the output is saturated and
+                        // the error would push it further into saturation.
+                        //
+                        double trialOutput =
+                                pTerm + iGain*(totalError + error) + dTerm + fTerm;
+                        if (!(trialOutput > maxOutput && iGain*error > 0.0 ||
+                              trialOutput < minOutput && iGain*error < 0.0))
+                        {
+                            totalError += error;
+                        }
+                        break;
+
+                    case CLAMP_INTEGRAL:
+                    default:
+                        double potentialGain = (totalError + error)*iGain;
+                        if (potentialGain >= maxOutput)
+                        {
+                            totalError = maxOutput/iGain;
+                        }
+                        else if (potentialGain > minOutput)
+                        {
+                            totalError += error;
+                        }
+                        else
+                        {
+                            totalError = minOutput/iGain;
+                        }
+                        break;
+                }
             }
         }
 
-        output =
-                kP*error +
-                kI*totalError +
-                kD*(error - prevError) +
-                kF*setPoint;
+        double iTerm = iGain*totalError;
+        output = pTerm + iTerm + dTerm + fTerm;
+        unclampedOutput = output;
 
         prevError = error;
         if (output > maxOutput)
@@ -452,6 +741,14 @@ public class TrcPidController
         {
             output = minOutput;
         }
+        appliedOutput = output;
+
+        if (recorder != null)
+        {
+            recorder.record(
+                    HalTimer.getCurrentTime(), setPoint, input,
+                    pTerm, iTerm, dTerm, fTerm, output);
+        }
 
         if (debugEnabled)
         {
@@ -463,4 +760,146 @@ public class TrcPidController
         return output;
     }   //getOutput
 
+    private double readInput()
+    {
+        lastInput = pidInput.getInput(this);
+        lastInputTick = TrcTaskMgr.getTickCount();
+        lastInputValid = true;
+        return lastInput;
+    }   //readInput
+
+    private void applyGainSchedule(double input)
+    {
+        gainSchedule.evaluate(
+                gainSchedule.getKey(setPoint, calculateError(input)));
+        updateGains();
+    }   //applyGainSchedule
+
+    private void updateGains()
+    {
+        //
+        // The gains the math runs on are the user's gains (setPID, the
+        // tuner, getKp and friends all see only those) scaled by the gain
+        // schedule, if there is one. Retuning therefore still works with a
+        // schedule, which only shapes the gains across the operating range.
+        // An integral gain change keeps the integral term unchanged so that
+        // retuning or crossing breakpoints doesn't bump the output.
+        //
+        double newIGain = kI;
+
+        if (gainSchedule != null)
+        {
+            newIGain *= gainSchedule.getKi();
+            pGain = kP*gainSchedule.getKp();
+            dGain = kD*gainSchedule.getKd();
+            fGain = kF*gainSchedule.getKf();
+        }
+        else
+        {
+            pGain = kP;
+            dGain = kD;
+            fGain = kF;
+        }
+        rescaleTotalError(newIGain);
+        iGain = newIGain;
+    }   //updateGains
+
+    private double getTickInput()
+    {
+        //
+        // The sensor is read at most once per control cycle: getOutput and
+        // the reporting reuse what setTarget or getOutput already read in
+        // this tick. setTarget itself always reads, since it typically
+        // follows a sensor reset in the same tick.
+        //
+        return lastInputValid && TrcTaskMgr.isCurrentTick(lastInputTick)?
+                lastInput: readInput();
+    }   //getTickInput
+
+    private void rescaleTotalError(double newKi)
+    {
+        //
+        // Keep the integral contribution (kI*totalError) unchanged across a
+        // kI change so that retuning a running controller does not bump the
+        // output. Dropping kI to zero discards the accumulated error.
+        //
+        if (newKi == 0.0 || iGain == 0.0)
+        {
+            totalError = 0.0;
+        }
+        else if (newKi != iGain)
+        {
+            totalError *= iGain/newKi;
+        }
+    }   //rescaleTotalError
+
+    private void updateInputRate(double input)
+    {
+        double currTime = HalTimer.getCurrentTime();
+
+        if (!rateSampleValid)
+        {
+            prevRateInput = input;
+            prevRateTime = currTime;
+            rateSampleValid = true;
+        }
+        else if (currTime > prevRateTime)
+        {
+            double delta = input - prevRateInput;
+            if ((options & PIDCTRLO_CONTINUOUS) != 0 && maxInput > minInput)
+            {
+                double range = maxInput - minInput;
+                delta %= range;
+                if (Math.abs(delta) > range/2.0)
+                {
+                    delta += delta > 0.0? -range: range;
+                }
+            }
+
+            double rate = delta/(currTime - prevRateTime);
+            if (inputRateValid)
+            {
+                inputRate = rateFilter.filter(rate);
+            }
+            else
+            {
+                //
+                // Seed the filter with the first rate instead of filtering
+                // up from zero.
+                //
+                rateFilter.reset(rate);
+                inputRate = rate;
+                inputRateValid = true;
+            }
+            prevRateInput = input;
+            prevRateTime = currTime;
+        }
+    }   //updateInputRate
+
+    private double calculateError(double input)
+    {
+        double error = setPoint - input;
+
+        if ((options & PIDCTRLO_CONTINUOUS) != 0 && maxInput > minInput)
+        {
+            //
+            // For continuous input, the error is the shortest path across
+            // the wrap boundary: e.g. from 10 to 350 degrees is -20, not 340.
+            //
+            double range = maxInput - minInput;
+            error %= range;
+            if (Math.abs(error) > range/2.0)
+            {
+                error += error > 0.0? -range: range;
+            }
+        }
+
+        if ((options & PIDCTRLO_INVERTED) != 0)
+        {
+            error = -error;
+        }
+
+        return error;
+    }   //calculateError
+
 }   //class TrcPidController
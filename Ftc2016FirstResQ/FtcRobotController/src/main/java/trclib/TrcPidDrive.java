@@ -16,9 +16,9 @@ public class TrcPidDrive implements TrcTaskMgr.Task
 
     private String instanceName;
     private TrcDriveBase driveBase;
-    private TrcPidController xPidCtrl;
-    private TrcPidController yPidCtrl;
-    private TrcPidController turnPidCtrl;
+    private TrcController xPidCtrl;
+    private TrcController yPidCtrl;
+    private TrcController turnPidCtrl;
     private TrcEvent notifyEvent;
     private double expiredTime;
     private int flags;
@@ -28,9 +28,9 @@ public class TrcPidDrive implements TrcTaskMgr.Task
     public TrcPidDrive(
         final String instanceName,
         TrcDriveBase driveBase,
-        TrcPidController xPidCtrl,
-        TrcPidController yPidCtrl,
-        TrcPidController turnPidCtrl)
+        TrcController xPidCtrl,
+        TrcController yPidCtrl,
+        TrcController turnPidCtrl)
     {
         if (debugEnabled)
         {
@@ -14,13 +14,24 @@ public class TrcPidMotor implements TrcTaskMgr.Task
     public static final int PIDMOTORF_STALLED           = (1 << 2);
     public static final int PIDMOTORF_CANCELED          = (1 << 3);
     public static final int PIDMOTORF_INVERTED          = (1 << 4);
+    public static final int PIDMOTORF_SPEED_CTRL        = (1 << 5);
+    public static final int PIDMOTORF_AT_SPEED          = (1 << 6);
+    public static final int PIDMOTORF_STALL_RETRY       = (1 << 7);
+
+    public enum GravityType
+    {
+        NONE,
+        ELEVATOR,
+        PIVOT
+    }   //enum GravityType
+
+    private static final int HOME_FAST_APPROACH = TrcStateMachine.STATE_STARTED;
+    private static final int HOME_BACK_OFF      = TrcStateMachine.STATE_STARTED + 1;
+    private static final int HOME_SLOW_APPROACH = TrcStateMachine.STATE_STARTED + 2;
 
     private String instanceName;
-    private HalSpeedController motor1;
-    private HalSpeedController motor2;
-    private byte syncGroup;
-    private TrcPidController pidCtrl;
-    private TrcMotorPosition motorPosition;
+    private TrcMotorGroup motors;
+    private TrcController pidCtrl;
     private double targetScale;
 
     private int flags;
@@ -28,37 +39,61 @@ public class TrcPidMotor implements TrcTaskMgr.Task
     private double motorPower;
     private double prevTarget;
     private double expiredTime;
-    private double prevPos;
     private double prevTime;
+    private double stallStartTime;
     private double calPower;
     private double minPower;
     private double maxPower;
     private double stallMinPower;
     private double stallTimeout;
     private double resetTimeout;
+    private double stallVelocity;
+    private double retryPowerScale;
+    private double retryDelay;
+    private int maxRetries;
+    private TrcEvent stallEvent;
+    private int consecutiveStalls;
+    private double retryTime;
+    private int stallCount;
+    private int recoveryCount;
+    private double totalStallTime;
+    private long velTick;
+    private TrcStateMachine homingSm;
+    private TrcEvent homingEvent;
+    private double homingFastPower;
+    private double homingSlowPower;
+    private double homingBackOff;
+    private double homingExpiredTime;
+    private boolean homed;
+    private boolean softLimitsEnabled;
+    private double softMinPos;
+    private double softMaxPos;
+    private GravityType gravityType;
+    private double gravityPower;
+    private double horizontalPos;
+    private TrcIIRFilter velFilter;
+    private boolean velSampleValid;
+    private double velPrevPos;
+    private double velPrevTime;
+    private double velocity;
+    private TrcVoltageCompensator voltageCompensator;
 
     public TrcPidMotor(
             final String instanceName,
             HalSpeedController motor,
-            TrcPidController pidCtrl,
+            TrcController pidCtrl,
             TrcMotorPosition motorPosition)
     {
         this(
                 instanceName,
-                motor,
-                null,
-                (byte)0,
-                pidCtrl,
-                motorPosition);
+                new TrcMotorGroup(instanceName, motorPosition, motor),
+                pidCtrl);
     }   //TrcPidMotor
 
     public TrcPidMotor(
             final String instanceName,
-            HalSpeedController motor1,
-            HalSpeedController motor2,
-            byte syncGroup,
-            TrcPidController pidCtrl,
-            TrcMotorPosition motorPosition)
+            TrcMotorGroup motors,
+            TrcController pidCtrl)
     {
         if (debugEnabled)
         {
@@ -69,15 +104,7 @@ public class TrcPidMotor implements TrcTaskMgr.Task
                     TrcDbgTrace.MsgLevel.INFO);
         }
 
-        this.instanceName = instanceName;
-        this.motor1 = motor1;
-        this.motor2 = motor2;
-        this.syncGroup = syncGroup;
-        this.pidCtrl = pidCtrl;
-        this.motorPosition = motorPosition;
-        this.targetScale = 1.0;
-
-        if (motor1 == null && motor2 == null)
+        if (motors == null)
         {
             throw new IllegalArgumentException("Must have at least one motor.");
         }
@@ -87,25 +114,54 @@ public class TrcPidMotor implements TrcTaskMgr.Task
             throw new IllegalArgumentException("Must have a PID controller.");
         }
 
-        if (motorPosition == null)
-        {
-            throw new IllegalArgumentException(
-                    "Must provide the TrcMotorPosition interface.");
-        }
+        this.instanceName = instanceName;
+        this.motors = motors;
+        this.pidCtrl = pidCtrl;
+        this.targetScale = 1.0;
 
         flags = 0;
         notifyEvent = null;
         motorPower = 0.0;
         prevTarget = 0.0;
         expiredTime = 0.0;
-        prevPos = 0.0;
         prevTime = 0.0;
+        stallStartTime = 0.0;
         calPower = 0.0;
         minPower = -1.0;
         maxPower = 1.0;
         stallMinPower = 0.0;
         stallTimeout = 0.0;
         resetTimeout = 0.0;
+        stallVelocity = 0.0;
+        retryPowerScale = 0.0;
+        retryDelay = 0.0;
+        maxRetries = 0;
+        stallEvent = null;
+        consecutiveStalls = 0;
+        retryTime = 0.0;
+        stallCount = 0;
+        recoveryCount = 0;
+        totalStallTime = 0.0;
+        velTick = -1;
+        homingSm = new TrcStateMachine(instanceName + ".homing");
+        homingEvent = null;
+        homingFastPower = 0.0;
+        homingSlowPower = 0.0;
+        homingBackOff = 0.0;
+        homingExpiredTime = 0.0;
+        homed = false;
+        softLimitsEnabled = false;
+        softMinPos = 0.0;
+        softMaxPos = 0.0;
+        gravityType = GravityType.NONE;
+        gravityPower = 0.0;
+        horizontalPos = 0.0;
+        velFilter = new TrcIIRFilter(1.0);
+        velSampleValid = false;
+        velPrevPos = 0.0;
+        velPrevTime = 0.0;
+        velocity = 0.0;
+        voltageCompensator = null;
     }   //TrcPidMotor
 
     public boolean isEnabled()
@@ -206,10 +262,101 @@ public class TrcPidMotor implements TrcTaskMgr.Task
         }
     }   //setTarget
 
+    public void setSpeedTarget(double speed, TrcEvent event)
+    {
+        final String funcName = "setSpeedTarget";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "speed=%f,event=%s",
+                    speed, event != null? event.getName(): "null");
+        }
+
+        //
+        // Closed loop speed control. The PID controller must take its input
+        // from getVelocity() and should be created with PIDCTRLO_SPEED_CTRL
+        // so the target is absolute. Its Kf term is the feedforward (power
+        // per unit of speed) that carries most of the load; P and I only
+        // trim the error. The motor holds the speed until canceled or given
+        // a new target. The event is signaled when the speed first settles
+        // within the controller's tolerance.
+        //
+        if ((flags & PIDMOTORF_ENABLED) != 0 &&
+            (flags & PIDMOTORF_SPEED_CTRL) == 0)
+        {
+            stop(false);
+        }
+
+        if (event != null)
+        {
+            event.clear();
+        }
+        notifyEvent = event;
+
+        if ((flags & PIDMOTORF_ENABLED) == 0)
+        {
+            velSampleValid = false;
+            updateVelocity();
+        }
+        pidCtrl.setTarget(speed);
+        expiredTime = 0.0;
+        flags |= PIDMOTORF_SPEED_CTRL | PIDMOTORF_HOLD_TARGET;
+        flags &= ~PIDMOTORF_AT_SPEED;
+        setEnabled(true);
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+    }   //setSpeedTarget
+
+    public void setVelocityFilter(double filterWeight)
+    {
+        final String funcName = "setVelocityFilter";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "filterWeight=%f", filterWeight);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        if (filterWeight <= 0.0 || filterWeight > 1.0)
+        {
+            throw new IllegalArgumentException(
+                    "Filter weight must be in the range of (0.0, 1.0].");
+        }
+
+        velFilter = new TrcIIRFilter(filterWeight);
+        velFilter.reset(velocity);
+    }   //setVelocityFilter
+
+    public double getVelocity()
+    {
+        return velocity;
+    }   //getVelocity
+
+    public boolean isAtSpeed()
+    {
+        return (flags & PIDMOTORF_AT_SPEED) != 0;
+    }   //isAtSpeed
+
     public void setStallProtection(
             double stallMinPower,
             double stallTimeout,
             double resetTimeout)
+    {
+        setStallProtection(stallMinPower, 0.0, stallTimeout, resetTimeout);
+    }   //setStallProtection
+
+    public void setStallProtection(
+            double stallMinPower,
+            double stallVelocity,
+            double stallTimeout,
+            double resetTimeout)
     {
         final String funcName = "setStallProtection";
 
@@ -217,16 +364,95 @@ public class TrcPidMotor implements TrcTaskMgr.Task
         {
             dbgTrace.traceEnter(
                     funcName, TrcDbgTrace.TraceLevel.API,
-                    "stallMinPower=%f,stallTimeout=%f,resetTimeout=%f",
-                    stallMinPower, stallTimeout, resetTimeout);
+                    "stallMinPower=%f,stallVel=%f,stallTimeout=%f,resetTimeout=%f",
+                    stallMinPower, stallVelocity, stallTimeout, resetTimeout);
             dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
         }
 
+        //
+        // The motor is considered stalled when at least stallMinPower is
+        // applied while the filtered velocity stays at or below
+        // stallVelocity for stallTimeout. A stallVelocity of zero means
+        // less than one encoder count per stallTimeout.
+        //
         this.stallMinPower = stallMinPower;
+        this.stallVelocity = stallVelocity;
         this.stallTimeout = stallTimeout;
         this.resetTimeout = resetTimeout;
     }   //setStallProtection
 
+    public void setStallRecovery(
+            double retryPowerScale,
+            double retryDelay,
+            int maxRetries)
+    {
+        final String funcName = "setStallRecovery";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "powerScale=%f,delay=%f,maxRetries=%d",
+                    retryPowerScale, retryDelay, maxRetries);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        //
+        // Instead of waiting for the operator to remove power, retry a
+        // stalled motor at retryPowerScale of the requested power. The wait
+        // before each retry doubles with every consecutive stall, starting
+        // at retryDelay. After maxRetries the motor stays off until power is
+        // removed as before.
+        //
+        this.retryPowerScale = retryPowerScale;
+        this.retryDelay = retryDelay;
+        this.maxRetries = maxRetries;
+    }   //setStallRecovery
+
+    public void setStallEvent(TrcEvent event)
+    {
+        stallEvent = event;
+    }   //setStallEvent
+
+    public boolean isStalled()
+    {
+        return (flags & PIDMOTORF_STALLED) != 0;
+    }   //isStalled
+
+    public int getStallCount()
+    {
+        return stallCount;
+    }   //getStallCount
+
+    public int getRecoveryCount()
+    {
+        return recoveryCount;
+    }   //getRecoveryCount
+
+    public double getTotalStallTime()
+    {
+        double stallTime = totalStallTime;
+
+        if ((flags & PIDMOTORF_STALLED) != 0)
+        {
+            stallTime += HalTimer.getCurrentTime() - stallStartTime;
+        }
+
+        return stallTime;
+    }   //getTotalStallTime
+
+    public void resetStallStats()
+    {
+        stallCount = 0;
+        recoveryCount = 0;
+        totalStallTime = 0.0;
+    }   //resetStallStats
+
+    public TrcMotorGroup getMotorGroup()
+    {
+        return motors;
+    }   //getMotorGroup
+
     public void setTargetScale(double targetScale)
     {
         final String funcName = "setTargetScale";
@@ -285,57 +511,125 @@ public class TrcPidMotor implements TrcTaskMgr.Task
         power = power > upperBound? upperBound:
                 power < lowerBound? lowerBound: power;
 
+        if (softLimitsEnabled && power != 0.0 &&
+            calPower == 0.0 && !homingSm.isEnabled())
+        {
+            updateVelocity();
+            if (power > 0.0 && velPrevPos >= softMaxPos ||
+                power < 0.0 && velPrevPos <= softMinPos)
+            {
+                power = 0.0;
+            }
+        }
+
         if ((flags & PIDMOTORF_STALLED) != 0)
         {
+            double currTime = HalTimer.getCurrentTime();
+
             if (power == 0.0)
             {
                 //
                 // We had a stall but if power is removed for at least
                 // reset timeout, we clear it.
                 //
-                if (resetTimeout == 0.0 ||
-                    HalTimer.getCurrentTime() - prevTime > resetTimeout)
+                if (resetTimeout == 0.0 || currTime - prevTime > resetTimeout)
                 {
-                    prevPos = motorPosition.getMotorPosition(motor1);
-                    prevTime = HalTimer.getCurrentTime();
-                    flags &= ~PIDMOTORF_STALLED;
+                    clearStall(currTime);
+                    flags &= ~PIDMOTORF_STALL_RETRY;
+                    consecutiveStalls = 0;
                 }
             }
             else
             {
-                prevTime = HalTimer.getCurrentTime();
+                prevTime = currTime;
+                if (retryPowerScale > 0.0 &&
+                    consecutiveStalls <= maxRetries &&
+                    currTime >= retryTime)
+                {
+                    //
+                    // Backoff has expired, try again with reduced power.
+                    //
+                    clearStall(currTime);
+                    flags |= PIDMOTORF_STALL_RETRY;
+                }
             }
         }
-        else
+
+        if ((flags & PIDMOTORF_STALLED) == 0)
         {
             motorPower = power;
+            if ((flags & PIDMOTORF_STALL_RETRY) != 0)
+            {
+                motorPower *= retryPowerScale;
+            }
+
             if (stallMinPower > 0.0 && stallTimeout > 0.0)
             {
                 //
                 // Stall protection is ON, check for stall condition.
                 // - power is above stallMinPower
-                // - motor has not moved for at least stallTimeout.
+                // - motor is not moving faster than stallVelocity for at
+                //   least stallTimeout.
                 //
-                double currPos = motorPosition.getMotorPosition(motor1);
-                if (Math.abs(power) < Math.abs(stallMinPower) ||
-                    currPos != prevPos)
+                double currTime = HalTimer.getCurrentTime();
+                double minVelocity = stallVelocity > 0.0?
+                        stallVelocity: Math.abs(targetScale)/stallTimeout;
+
+                if (!velSampleValid || currTime - velPrevTime > stallTimeout)
                 {
-                    prevPos = currPos;
-                    prevTime = HalTimer.getCurrentTime();
+                    //
+                    // We have not been watching the motor, start over.
+                    //
+                    stallStartTime = currTime;
+                }
+                updateVelocity();
+                if (Math.abs(motorPower) < Math.abs(stallMinPower) ||
+                    Math.abs(velocity) > minVelocity)
+                {
+                    stallStartTime = currTime;
+                    if ((flags & PIDMOTORF_STALL_RETRY) != 0 &&
+                        Math.abs(velocity) > minVelocity)
+                    {
+                        //
+                        // The retry got the mechanism moving again.
+                        //
+                        flags &= ~PIDMOTORF_STALL_RETRY;
+                        consecutiveStalls = 0;
+                        recoveryCount++;
+                    }
                 }
 
-                if (HalTimer.getCurrentTime() - prevTime > stallTimeout)
+                if (currTime - stallStartTime > stallTimeout)
                 {
                     //
                     // We have detected a stalled condition for at least
-                    // stallTimeout. Kill power to protect the motor.
+                    // stallTimeout. Kill power to protect the motor and
+                    // back off exponentially before the next retry.
                     //
                     motorPower = 0.0;
                     flags |= PIDMOTORF_STALLED;
+                    flags &= ~PIDMOTORF_STALL_RETRY;
+                    stallCount++;
+                    consecutiveStalls++;
+                    stallStartTime = currTime;
+                    prevTime = currTime;
+                    retryTime = currTime +
+                                retryDelay*(1 << Math.min(consecutiveStalls - 1, 16));
+                    if (stallEvent != null)
+                    {
+                        stallEvent.set(true);
+                    }
+
+                    if (debugEnabled)
+                    {
+                        dbgTrace.traceInfo(
+                                funcName, "Stalled: count=%d,retryAt=%f",
+                                consecutiveStalls, retryTime);
+                    }
                 }
             }
 
-            setMotorPower(motorPower);
+            setMotorPower(motorPower, lowerBound, upperBound);
         }
 
         if (debugEnabled)
@@ -360,16 +654,22 @@ public class TrcPidMotor implements TrcTaskMgr.Task
                     power, minPos, maxPos);
         }
 
-        if (motorPosition.isReverseLimitSwitchActive(motor1) && power < 0.0 ||
-            motorPosition.isForwardLimitSwitchActive(motor1) && power > 0.0)
+        if (motors.isReverseLimitSwitchActive() && power < 0.0 ||
+            motors.isForwardLimitSwitchActive() && power > 0.0)
         {
             if (power < 0.0)
             {
-                motorPosition.resetMotorPosition(motor1);
+                resetPosition();
             }
             power = 0.0;
         }
 
+        if (softLimitsEnabled)
+        {
+            minPos = Math.max(minPos, softMinPos);
+            maxPos = Math.min(maxPos, softMaxPos);
+        }
+
         double currTarget =
                 power < 0.0? minPos:
                 power > 0.0? maxPos: 0.0;
@@ -381,7 +681,7 @@ public class TrcPidMotor implements TrcTaskMgr.Task
                 if (holdTarget)
                 {
                     setTarget(
-                            motorPosition.getMotorPosition(motor1)*targetScale,
+                            motors.getPosition()*targetScale,
                             true,
                             null,
                             0.0);
@@ -415,6 +715,311 @@ public class TrcPidMotor implements TrcTaskMgr.Task
         }
     }   //setPidPower
 
+    private void resetPosition()
+    {
+        motors.resetPosition();
+        velSampleValid = false;
+    }   //resetPosition
+
+    private void homingTask()
+    {
+        final String funcName = "homingTask";
+        int state = homingSm.getState();
+        boolean atSwitch = motors.isReverseLimitSwitchActive();
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceInfo(
+                    funcName, "state=%d,atSwitch=%s",
+                    state, Boolean.toString(atSwitch));
+        }
+
+        if (homingExpiredTime != 0.0 &&
+            HalTimer.getCurrentTime() >= homingExpiredTime)
+        {
+            //
+            // Never found the switch (or could not get off it), give up.
+            // stop() cancels the event.
+            //
+            stop(true);
+            return;
+        }
+
+        switch (state)
+        {
+            case HOME_FAST_APPROACH:
+                if (atSwitch)
+                {
+                    setMotorPower(0.0);
+                    resetPosition();
+                    homingSm.setState(HOME_BACK_OFF);
+                }
+                else
+                {
+                    setPower(homingFastPower, minPower, maxPower, false);
+                }
+                break;
+
+            case HOME_BACK_OFF:
+                if (!atSwitch &&
+                    motors.getPosition()*targetScale >= homingBackOff)
+                {
+                    setMotorPower(0.0);
+                    homingSm.setState(HOME_SLOW_APPROACH);
+                }
+                else
+                {
+                    setPower(homingSlowPower, minPower, maxPower, false);
+                }
+                break;
+
+            case HOME_SLOW_APPROACH:
+            default:
+                if (atSwitch)
+                {
+                    TrcEvent event = homingEvent;
+                    homingEvent = null;
+                    stop(true);
+                    resetPosition();
+                    homed = true;
+                    if (event != null)
+                    {
+                        event.set(true);
+                    }
+                }
+                else
+                {
+                    setPower(-homingSlowPower, minPower, maxPower, false);
+                }
+                break;
+        }
+    }   //homingTask
+
+    private void clearStall(double currTime)
+    {
+        totalStallTime += currTime - stallStartTime;
+        stallStartTime = currTime;
+        flags &= ~PIDMOTORF_STALLED;
+    }   //clearStall
+
+    private void updateVelocity()
+    {
+        final String funcName = "updateVelocity";
+        long tick = TrcTaskMgr.getTickCount();
+
+        //
+        // Speed control and stall protection both need the velocity, only
+        // read the encoder once per control cycle. If the task manager
+        // isn't ticking, isCurrentTick fails and every call samples.
+        //
+        if (velSampleValid && TrcTaskMgr.isCurrentTick(velTick))
+        {
+            return;
+        }
+        velTick = tick;
+
+        double currPos = motors.getPosition()*targetScale;
+        double currTime = HalTimer.getCurrentTime();
+
+        //
+        // Encoder counts over one loop are coarse, so smooth the difference
+        // quotient with an exponential filter (weight 1.0 means no
+        // filtering).
+        //
+        if (velSampleValid && currTime > velPrevTime)
+        {
+            double rawVel = (currPos - velPrevPos)/(currTime - velPrevTime);
+            velocity = velFilter.filter(rawVel);
+        }
+        else if (!velSampleValid)
+        {
+            velocity = 0.0;
+            velFilter.reset(velocity);
+            velSampleValid = true;
+        }
+        velPrevPos = currPos;
+        velPrevTime = currTime;
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceInfo(
+                    funcName, "pos=%f,vel=%f", currPos, velocity);
+        }
+    }   //updateVelocity
+
+    public void home(
+            double fastPower,
+            double slowPower,
+            double backOffDistance,
+            double timeout,
+            TrcEvent event)
+    {
+        final String funcName = "home";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "fast=%f,slow=%f,backOff=%f,timeout=%f,event=%s",
+                    fastPower, slowPower, backOffDistance, timeout,
+                    event != null? event.getName(): "null");
+        }
+
+        //
+        // Home against the reverse limit switch without blocking: run into
+        // it at fastPower, back off backOffDistance (in target units) at
+        // slowPower, then come back in at slowPower so the switch always
+        // trips at the same speed. The position is zeroed at the final
+        // switch hit. The event is signaled when homing completes and
+        // canceled if it fails to finish within timeout (0 means no
+        // timeout) or is interrupted.
+        //
+        if ((flags & PIDMOTORF_ENABLED) != 0)
+        {
+            stop(false);
+        }
+
+        if (event != null)
+        {
+            event.clear();
+        }
+        homingEvent = event;
+        homingFastPower = -Math.abs(fastPower);
+        homingSlowPower = Math.abs(slowPower);
+        homingBackOff = Math.abs(backOffDistance);
+        homingExpiredTime = timeout;
+        if (timeout != 0.0)
+        {
+            homingExpiredTime += HalTimer.getCurrentTime();
+        }
+        homed = false;
+        homingSm.start(HOME_FAST_APPROACH);
+        setEnabled(true);
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+    }   //home
+
+    public boolean isHoming()
+    {
+        return homingSm.isEnabled();
+    }   //isHoming
+
+    public boolean isHomed()
+    {
+        return homed;
+    }   //isHomed
+
+    public void setSoftLimits(double minPos, double maxPos)
+    {
+        final String funcName = "setSoftLimits";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "minPos=%f,maxPos=%f", minPos, maxPos);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        if (minPos >= maxPos)
+        {
+            throw new IllegalArgumentException(
+                    "Soft limit minPos must be less than maxPos.");
+        }
+
+        //
+        // Limits are in target units (position times target scale). Power
+        // driving further past a limit is dropped in setPower, and
+        // setPidPower never targets beyond them. They are not applied
+        // while homing or calibrating.
+        //
+        softMinPos = minPos;
+        softMaxPos = maxPos;
+        softLimitsEnabled = true;
+    }   //setSoftLimits
+
+    public void clearSoftLimits()
+    {
+        softLimitsEnabled = false;
+    }   //clearSoftLimits
+
+    public void setGravityCompensation(
+            GravityType gravityType,
+            double gravityPower,
+            double horizontalPos)
+    {
+        final String funcName = "setGravityCompensation";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "type=%s,power=%f,horizontalPos=%f",
+                    gravityType.toString(), gravityPower, horizontalPos);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        //
+        // Power added to the PID output to hold the load against gravity,
+        // so the I term does not have to build up to do it.
+        // - ELEVATOR: a constant gravityPower.
+        // - PIVOT: gravityPower*cos(angle), where the target units must be
+        //   degrees and horizontalPos is the position at which the arm is
+        //   level (i.e. where gravity torque is largest).
+        //
+        this.gravityType = gravityType;
+        this.gravityPower = gravityPower;
+        this.horizontalPos = horizontalPos;
+    }   //setGravityCompensation
+
+    public double getGravityPower()
+    {
+        double power;
+
+        switch (gravityType)
+        {
+            case ELEVATOR:
+                power = gravityPower;
+                break;
+
+            case PIVOT:
+                updateVelocity();
+                power = gravityPower*
+                        Math.cos(Math.toRadians(velPrevPos - horizontalPos));
+                break;
+
+            case NONE:
+            default:
+                power = 0.0;
+                break;
+        }
+
+        return power;
+    }   //getGravityPower
+
+    public void setVoltageCompensation(TrcVoltageCompensator compensator)
+    {
+        final String funcName = "setVoltageCompensation";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "compensated=%s", Boolean.toString(compensator != null));
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        //
+        // Scale the power sent to the motors to the compensator's nominal
+        // battery voltage, so PID gains and gravity power tuned at that
+        // voltage hold as the battery drains. Null turns it off.
+        //
+        voltageCompensator = compensator;
+    }   //setVoltageCompensation
+
     public void zeroCalibrate(double calPower)
     {
         final String funcName = "zeroCalibrate";
@@ -449,6 +1054,21 @@ public class TrcPidMotor implements TrcTaskMgr.Task
 
         setEnabled(false);
 
+        if ((flags & PIDMOTORF_STALLED) != 0)
+        {
+            totalStallTime += HalTimer.getCurrentTime() - stallStartTime;
+        }
+
+        if (homingSm.isEnabled())
+        {
+            homingSm.stop();
+            if (homingEvent != null)
+            {
+                homingEvent.cancel();
+                homingEvent = null;
+            }
+        }
+
         if (stopMotor)
         {
             setMotorPower(0.0);
@@ -470,6 +1090,12 @@ public class TrcPidMotor implements TrcTaskMgr.Task
     }   //stop
 
     private void setMotorPower(double power)
+    {
+        setMotorPower(power, minPower, maxPower);
+    }   //setMotorPower
+
+    private void setMotorPower(
+            double power, double lowerBound, double upperBound)
     {
         final String funcName = "setMotorPower";
 
@@ -477,20 +1103,21 @@ public class TrcPidMotor implements TrcTaskMgr.Task
         {
             dbgTrace.traceEnter(
                     funcName, TrcDbgTrace.TraceLevel.API,
-                    "power=%f", power);
+                    "power=%f,lowBound=%f,hiBound=%f",
+                    power, lowerBound, upperBound);
         }
 
-        motor1.setPower(power);
-        if (motor2 != null)
+        if (voltageCompensator != null && power != 0.0)
         {
-            motor2.setPower(power);
-            /*
-            if (motor2 instanceof CANJaguar)
-            {
-                CANJaguar.updateSyncGroup(syncGroup);
-            }
-            */
+            //
+            // Compensation scales the power up on a low battery, which can
+            // push it past the range the caller asked for, so clamp again.
+            //
+            power = voltageCompensator.compensate(power);
+            power = power > upperBound? upperBound:
+                    power < lowerBound? lowerBound: power;
         }
+        motors.setPower(power);
 
         if (debugEnabled)
         {
@@ -580,15 +1207,19 @@ public class TrcPidMotor implements TrcTaskMgr.Task
                     "mode=%s", runMode.toString());
         }
 
-        if (calPower != 0.0)
+        if (homingSm.isEnabled())
+        {
+            homingTask();
+        }
+        else if (calPower != 0.0)
         {
             //
             // We are in zero calibration mode.
             //
             if (calPower < 0.0 &&
-                !motorPosition.isReverseLimitSwitchActive(motor1) ||
+                !motors.isReverseLimitSwitchActive() ||
                 calPower > 0.0 &&
-                !motorPosition.isForwardLimitSwitchActive(motor1))
+                !motors.isForwardLimitSwitchActive())
             {
                 setPower(calPower, minPower, maxPower, false);
             }
@@ -599,16 +1230,47 @@ public class TrcPidMotor implements TrcTaskMgr.Task
                 //
                 calPower = 0.0;
                 setMotorPower(0.0);
-                if (motorPosition.isReverseLimitSwitchActive(motor1))
+                if (motors.isReverseLimitSwitchActive())
                 {
                     //
                     // Reset encoder only if lower limit switch is active.
                     //
-                    motorPosition.resetMotorPosition(motor1);
+                    resetPosition();
+                    homed = true;
                 }
                 setEnabled(false);
             }
         }
+        else if ((flags & PIDMOTORF_SPEED_CTRL) != 0)
+        {
+            //
+            // We are in speed control mode. Refresh the velocity before the
+            // controller reads it.
+            //
+            updateVelocity();
+            motorPower = pidCtrl.getOutput();
+            if ((flags & PIDMOTORF_INVERTED) != 0)
+            {
+                motorPower *= -1.0;
+            }
+            setPower(motorPower, minPower, maxPower, false);
+            pidCtrl.setAppliedOutput(
+                    (flags & PIDMOTORF_STALLED) != 0? 0.0: motorPower);
+
+            if (pidCtrl.isOnTarget())
+            {
+                flags |= PIDMOTORF_AT_SPEED;
+                if (notifyEvent != null)
+                {
+                    notifyEvent.set(true);
+                    notifyEvent = null;
+                }
+            }
+            else
+            {
+                flags &= ~PIDMOTORF_AT_SPEED;
+            }
+        }
         else if ((flags & PIDMOTORF_ENABLED) != 0)
         {
             if ((flags & PIDMOTORF_HOLD_TARGET) == 0 && pidCtrl.isOnTarget() ||
@@ -623,12 +1285,22 @@ public class TrcPidMotor implements TrcTaskMgr.Task
             }
             else
             {
-                motorPower = pidCtrl.getOutput();
+                double gravity = getGravityPower();
+                motorPower = pidCtrl.getOutput() + gravity;
                 if ((flags & PIDMOTORF_INVERTED) != 0)
                 {
                     motorPower *= -1.0;
                 }
                 setPower(motorPower, minPower, maxPower, false);
+                //
+                // Tell the controller what actually reached the motor after
+                // our power limits and stall protection, so back-calculation
+                // anti-windup can account for it. The gravity feedforward is
+                // not the controller's share of it.
+                //
+                pidCtrl.setAppliedOutput(
+                        ((flags & PIDMOTORF_STALLED) != 0? 0.0: motorPower) -
+                        gravity);
             }
         }
 
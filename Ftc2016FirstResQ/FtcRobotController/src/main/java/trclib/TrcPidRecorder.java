@@ -0,0 +1,342 @@
+package trclib;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+public class TrcPidRecorder implements TrcTaskMgr.Task
+{
+    private static final String moduleName = "TrcPidRecorder";
+    private static final boolean debugEnabled = false;
+    private TrcDbgTrace dbgTrace = null;
+
+    private static final String csvHeader =
+            "Time,SetPoint,Input,PTerm,ITerm,DTerm,FTerm,Output";
+
+    private String instanceName;
+    private int capacity;
+    private double[] timestamps;
+    private double[] setPoints;
+    private double[] inputs;
+    private double[] pTerms;
+    private double[] iTerms;
+    private double[] dTerms;
+    private double[] fTerms;
+    private double[] outputs;
+    private int nextIndex;
+    private int numEntries;
+    private boolean enabled;
+    private String stopFilePath;
+    private boolean stopFileBinary;
+
+    public TrcPidRecorder(final String instanceName, int capacity)
+    {
+        if (debugEnabled)
+        {
+            dbgTrace = new TrcDbgTrace(
+                    moduleName + "." + instanceName,
+                    false,
+                    TrcDbgTrace.TraceLevel.API,
+                    TrcDbgTrace.MsgLevel.INFO);
+        }
+
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException(
+                    "Capacity must be a positive number.");
+        }
+
+        this.instanceName = instanceName;
+        this.capacity = capacity;
+        //
+        // All storage is allocated up front so that recording during a
+        // match never creates garbage.
+        //
+        timestamps = new double[capacity];
+        setPoints = new double[capacity];
+        inputs = new double[capacity];
+        pTerms = new double[capacity];
+        iTerms = new double[capacity];
+        dTerms = new double[capacity];
+        fTerms = new double[capacity];
+        outputs = new double[capacity];
+        nextIndex = 0;
+        numEntries = 0;
+        enabled = true;
+        stopFilePath = null;
+        stopFileBinary = false;
+    }   //TrcPidRecorder
+
+    public void setEnabled(boolean enabled)
+    {
+        final String funcName = "setEnabled";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "enabled=%s", Boolean.toString(enabled));
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        this.enabled = enabled;
+    }   //setEnabled
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }   //isEnabled
+
+    public void setSaveOnStop(String filePath, boolean binary)
+    {
+        final String funcName = "setSaveOnStop";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "path=%s,binary=%s",
+                    filePath != null? filePath: "null",
+                    Boolean.toString(binary));
+        }
+
+        stopFilePath = filePath;
+        stopFileBinary = binary;
+        if (filePath != null)
+        {
+            TrcTaskMgr.registerTask(
+                    instanceName,
+                    this,
+                    TrcTaskMgr.TaskType.STOP_TASK);
+        }
+        else
+        {
+            TrcTaskMgr.unregisterTask(
+                    this,
+                    TrcTaskMgr.TaskType.STOP_TASK);
+        }
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+    }   //setSaveOnStop
+
+    public void clear()
+    {
+        final String funcName = "clear";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(funcName, TrcDbgTrace.TraceLevel.API);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        nextIndex = 0;
+        numEntries = 0;
+    }   //clear
+
+    public int getCapacity()
+    {
+        return capacity;
+    }   //getCapacity
+
+    public int getNumEntries()
+    {
+        return numEntries;
+    }   //getNumEntries
+
+    public void record(
+            double timestamp,
+            double setPoint,
+            double input,
+            double pTerm,
+            double iTerm,
+            double dTerm,
+            double fTerm,
+            double output)
+    {
+        if (enabled)
+        {
+            timestamps[nextIndex] = timestamp;
+            setPoints[nextIndex] = setPoint;
+            inputs[nextIndex] = input;
+            pTerms[nextIndex] = pTerm;
+            iTerms[nextIndex] = iTerm;
+            dTerms[nextIndex] = dTerm;
+            fTerms[nextIndex] = fTerm;
+            outputs[nextIndex] = output;
+
+            nextIndex++;
+            if (nextIndex == capacity)
+            {
+                nextIndex = 0;
+            }
+
+            if (numEntries < capacity)
+            {
+                numEntries++;
+            }
+        }
+    }   //record
+
+    public void writeCsv(PrintStream out)
+    {
+        out.println(csvHeader);
+        int index = getOldestIndex();
+        for (int i = 0; i < numEntries; i++)
+        {
+            out.printf(
+                    "%.4f,%f,%f,%f,%f,%f,%f,%f\n",
+                    timestamps[index], setPoints[index], inputs[index],
+                    pTerms[index], iTerms[index], dTerms[index],
+                    fTerms[index], outputs[index]);
+            index++;
+            if (index == capacity)
+            {
+                index = 0;
+            }
+        }
+        out.flush();
+    }   //writeCsv
+
+    public void writeBinary(OutputStream outStream) throws IOException
+    {
+        //
+        // Binary layout: entry count (int) followed by that many records of
+        // 8 doubles in the same column order as the CSV header.
+        //
+        DataOutputStream out = new DataOutputStream(outStream);
+        out.writeInt(numEntries);
+        int index = getOldestIndex();
+        for (int i = 0; i < numEntries; i++)
+        {
+            out.writeDouble(timestamps[index]);
+            out.writeDouble(setPoints[index]);
+            out.writeDouble(inputs[index]);
+            out.writeDouble(pTerms[index]);
+            out.writeDouble(iTerms[index]);
+            out.writeDouble(dTerms[index]);
+            out.writeDouble(fTerms[index]);
+            out.writeDouble(outputs[index]);
+            index++;
+            if (index == capacity)
+            {
+                index = 0;
+            }
+        }
+        out.flush();
+    }   //writeBinary
+
+    public boolean saveToFile(String filePath, boolean binary)
+    {
+        final String funcName = "saveToFile";
+        boolean success = false;
+        OutputStream outStream = null;
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "path=%s,binary=%s", filePath, Boolean.toString(binary));
+        }
+
+        try
+        {
+            outStream = new BufferedOutputStream(new FileOutputStream(filePath));
+            if (binary)
+            {
+                writeBinary(outStream);
+                success = true;
+            }
+            else
+            {
+                PrintStream printStream = new PrintStream(outStream);
+                writeCsv(printStream);
+                success = !printStream.checkError();
+            }
+        }
+        catch (IOException e)
+        {
+            success = false;
+        }
+        finally
+        {
+            if (outStream != null)
+            {
+                try
+                {
+                    outStream.close();
+                }
+                catch (IOException e)
+                {
+                    success = false;
+                }
+            }
+        }
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceExit(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "=%s", Boolean.toString(success));
+        }
+
+        return success;
+    }   //saveToFile
+
+    private int getOldestIndex()
+    {
+        int index = nextIndex - numEntries;
+        return index < 0? index + capacity: index;
+    }   //getOldestIndex
+
+    //
+    // Implements TrcTaskMgr.Task
+    //
+    public void startTask(TrcRobot.RunMode runMode)
+    {
+    }   //startTask
+
+    public void stopTask(TrcRobot.RunMode runMode)
+    {
+        final String funcName = "stopTask";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.TASK,
+                    "mode=%s", runMode.toString());
+        }
+
+        if (stopFilePath != null && numEntries > 0)
+        {
+            saveToFile(stopFilePath, stopFileBinary);
+        }
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.TASK);
+        }
+    }   //stopTask
+
+    public void prePeriodicTask(TrcRobot.RunMode runMode)
+    {
+    }   //prePeriodicTask
+
+    public void postPeriodicTask(TrcRobot.RunMode runMode)
+    {
+    }   //postPeriodicTask
+
+    public void preContinuousTask(TrcRobot.RunMode runMode)
+    {
+    }   //preContinuousTask
+
+    public void postContinuousTask(TrcRobot.RunMode runMode)
+    {
+    }   //postContinuousTask
+
+}   //class TrcPidRecorder
@@ -0,0 +1,366 @@
+package trclib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Properties;
+
+import hallib.HalDashboard;
+import hallib.HalTimer;
+
+public class TrcPidTuner implements TrcTaskMgr.Task
+{
+    private static final String moduleName = "TrcPidTuner";
+    private static final boolean debugEnabled = false;
+    private TrcDbgTrace dbgTrace = null;
+
+    private static final String KP_SUFFIX = ".Kp";
+    private static final String KI_SUFFIX = ".Ki";
+    private static final String KD_SUFFIX = ".Kd";
+    private static final String KF_SUFFIX = ".Kf";
+    private static final double FILE_CHECK_PERIOD = 0.5;
+
+    //
+    // The dashboard only goes from the robot to the driver station, so it
+    // is used to display the gains. Gains are changed by editing the gains
+    // file (e.g. pushing a new one with adb): while enabled, the tuner
+    // checks the file's modified time twice a second and reloads it when
+    // it changes.
+    //
+    private String instanceName;
+    private HalDashboard dashboard;
+    private ArrayList<TrcPidController> pidCtrlList =
+            new ArrayList<TrcPidController>();
+    private boolean enabled;
+    private String gainsFilePath;
+    private long gainsFileTime;
+    private double nextFileCheckTime;
+
+    public TrcPidTuner(final String instanceName)
+    {
+        if (debugEnabled)
+        {
+            dbgTrace = new TrcDbgTrace(
+                    moduleName + "." + instanceName,
+                    false,
+                    TrcDbgTrace.TraceLevel.API,
+                    TrcDbgTrace.MsgLevel.INFO);
+        }
+
+        this.instanceName = instanceName;
+        dashboard = HalDashboard.getInstance();
+        enabled = false;
+        gainsFilePath = null;
+        gainsFileTime = 0;
+        nextFileCheckTime = 0.0;
+    }   //TrcPidTuner
+
+    public void addController(TrcPidController pidCtrl)
+    {
+        final String funcName = "addController";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "pidCtrl=%s", pidCtrl.getName());
+        }
+
+        if (!pidCtrlList.contains(pidCtrl))
+        {
+            pidCtrlList.add(pidCtrl);
+            if (enabled)
+            {
+                publishGains(pidCtrl);
+            }
+        }
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+    }   //addController
+
+    public void setEnabled(boolean enabled, String gainsFilePath)
+    {
+        final String funcName = "setEnabled";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "enabled=%s,path=%s", Boolean.toString(enabled),
+                    gainsFilePath);
+        }
+
+        this.enabled = enabled;
+        if (enabled)
+        {
+            //
+            // A null path only displays the gains.
+            //
+            this.gainsFilePath = gainsFilePath;
+            gainsFileTime = gainsFilePath != null?
+                    new File(gainsFilePath).lastModified(): 0;
+            nextFileCheckTime = 0.0;
+            for (int i = 0; i < pidCtrlList.size(); i++)
+            {
+                publishGains(pidCtrlList.get(i));
+            }
+            //
+            // Gains are picked up in the PrePeriodic task, before any
+            // controller computes its output for the tick, so a controller
+            // never runs with half of an updated gain set.
+            //
+            TrcTaskMgr.registerTask(
+                    instanceName,
+                    this,
+                    TrcTaskMgr.TaskType.PREPERIODIC_TASK);
+        }
+        else
+        {
+            TrcTaskMgr.unregisterTask(
+                    this,
+                    TrcTaskMgr.TaskType.PREPERIODIC_TASK);
+        }
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+    }   //setEnabled
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }   //isEnabled
+
+    public boolean saveGains(String filePath)
+    {
+        final String funcName = "saveGains";
+        boolean success = false;
+        Properties gains = new Properties();
+        OutputStream outStream = null;
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "path=%s", filePath);
+        }
+
+        for (int i = 0; i < pidCtrlList.size(); i++)
+        {
+            TrcPidController pidCtrl = pidCtrlList.get(i);
+            String name = pidCtrl.getName();
+            gains.setProperty(name + KP_SUFFIX, Double.toString(pidCtrl.getKp()));
+            gains.setProperty(name + KI_SUFFIX, Double.toString(pidCtrl.getKi()));
+            gains.setProperty(name + KD_SUFFIX, Double.toString(pidCtrl.getKd()));
+            gains.setProperty(name + KF_SUFFIX, Double.toString(pidCtrl.getKf()));
+        }
+
+        try
+        {
+            outStream = new FileOutputStream(filePath);
+            gains.store(outStream, moduleName + "." + instanceName);
+            success = true;
+        }
+        catch (IOException e)
+        {
+            success = false;
+        }
+        finally
+        {
+            if (outStream != null)
+            {
+                try
+                {
+                    outStream.close();
+                }
+                catch (IOException e)
+                {
+                    success = false;
+                }
+            }
+        }
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceExit(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "=%s", Boolean.toString(success));
+        }
+
+        return success;
+    }   //saveGains
+
+    public boolean loadGains(String filePath)
+    {
+        final String funcName = "loadGains";
+        boolean success = false;
+        Properties gains = new Properties();
+        InputStream inStream = null;
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "path=%s", filePath);
+        }
+
+        try
+        {
+            inStream = new FileInputStream(filePath);
+            gains.load(inStream);
+            success = true;
+        }
+        catch (IOException e)
+        {
+            //
+            // No saved gains (e.g. first run), keep the ones in code.
+            //
+            success = false;
+        }
+        finally
+        {
+            if (inStream != null)
+            {
+                try
+                {
+                    inStream.close();
+                }
+                catch (IOException e)
+                {
+                }
+            }
+        }
+
+        if (success)
+        {
+            for (int i = 0; i < pidCtrlList.size(); i++)
+            {
+                TrcPidController pidCtrl = pidCtrlList.get(i);
+                String name = pidCtrl.getName();
+                pidCtrl.setPID(
+                        parseGain(gains.getProperty(name + KP_SUFFIX), pidCtrl.getKp()),
+                        parseGain(gains.getProperty(name + KI_SUFFIX), pidCtrl.getKi()),
+                        parseGain(gains.getProperty(name + KD_SUFFIX), pidCtrl.getKd()),
+                        parseGain(gains.getProperty(name + KF_SUFFIX), pidCtrl.getKf()));
+                if (enabled)
+                {
+                    publishGains(pidCtrl);
+                }
+            }
+        }
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceExit(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "=%s", Boolean.toString(success));
+        }
+
+        return success;
+    }   //loadGains
+
+    private double parseGain(String value, double defaultValue)
+    {
+        double gain = defaultValue;
+
+        if (value != null)
+        {
+            try
+            {
+                gain = Double.parseDouble(value);
+            }
+            catch (NumberFormatException e)
+            {
+                gain = defaultValue;
+            }
+        }
+
+        return gain;
+    }   //parseGain
+
+    private void publishGains(TrcPidController pidCtrl)
+    {
+        String name = pidCtrl.getName();
+
+        dashboard.putNumber(name + KP_SUFFIX, pidCtrl.getKp());
+        dashboard.putNumber(name + KI_SUFFIX, pidCtrl.getKi());
+        dashboard.putNumber(name + KD_SUFFIX, pidCtrl.getKd());
+        dashboard.putNumber(name + KF_SUFFIX, pidCtrl.getKf());
+    }   //publishGains
+
+    //
+    // Implements TrcTaskMgr.Task
+    //
+    public void startTask(TrcRobot.RunMode runMode)
+    {
+    }   //startTask
+
+    public void stopTask(TrcRobot.RunMode runMode)
+    {
+    }   //stopTask
+
+    public void prePeriodicTask(TrcRobot.RunMode runMode)
+    {
+        final String funcName = "prePeriodicTask";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.TASK,
+                    "mode=%s", runMode.toString());
+        }
+
+        double currTime = HalTimer.getCurrentTime();
+        if (gainsFilePath != null && currTime >= nextFileCheckTime)
+        {
+            nextFileCheckTime = currTime + FILE_CHECK_PERIOD;
+
+            long fileTime = new File(gainsFilePath).lastModified();
+            if (fileTime != 0 && fileTime != gainsFileTime)
+            {
+                //
+                // loadGains applies each controller's gains with one setPID
+                // call, which rescales the integrator so the output does
+                // not jump on a kI change. A file caught half written just
+                // keeps the gains it can't parse and is read again on the
+                // next change.
+                //
+                gainsFileTime = fileTime;
+                boolean loaded = loadGains(gainsFilePath);
+
+                if (debugEnabled)
+                {
+                    dbgTrace.traceInfo(
+                            funcName, "Reloaded %s: %s",
+                            gainsFilePath, Boolean.toString(loaded));
+                }
+            }
+        }
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.TASK);
+        }
+    }   //prePeriodicTask
+
+    public void postPeriodicTask(TrcRobot.RunMode runMode)
+    {
+    }   //postPeriodicTask
+
+    public void preContinuousTask(TrcRobot.RunMode runMode)
+    {
+    }   //preContinuousTask
+
+    public void postContinuousTask(TrcRobot.RunMode runMode)
+    {
+    }   //postContinuousTask
+
+}   //class TrcPidTuner
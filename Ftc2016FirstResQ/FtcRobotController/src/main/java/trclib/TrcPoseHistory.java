@@ -0,0 +1,222 @@
+package trclib;
+
+public class TrcPoseHistory
+{
+    private static final String moduleName = "TrcPoseHistory";
+    private static final boolean debugEnabled = false;
+    private TrcDbgTrace dbgTrace = null;
+
+    //
+    // A fixed size ring buffer of timestamped field poses, oldest entries
+    // overwritten first. Timestamps must be added in increasing order so
+    // the buffer is always sorted and "where was the robot at time t" is a
+    // binary search plus a linear interpolation between the two poses
+    // around t. Nothing is allocated after construction; lookups write
+    // into an array supplied by the caller.
+    //
+    private double[] times;
+    private double[] xs;
+    private double[] ys;
+    private double[] headings;
+    private int oldest;
+    private int count;
+
+    public TrcPoseHistory(final String instanceName, int capacity)
+    {
+        if (debugEnabled)
+        {
+            dbgTrace = new TrcDbgTrace(
+                    moduleName + "." + instanceName,
+                    false,
+                    TrcDbgTrace.TraceLevel.API,
+                    TrcDbgTrace.MsgLevel.INFO);
+        }
+
+        if (capacity < 2)
+        {
+            throw new IllegalArgumentException(
+                    "Capacity must be at least two poses.");
+        }
+
+        times = new double[capacity];
+        xs = new double[capacity];
+        ys = new double[capacity];
+        headings = new double[capacity];
+        clear();
+    }   //TrcPoseHistory
+
+    public void clear()
+    {
+        oldest = 0;
+        count = 0;
+    }   //clear
+
+    public int getCount()
+    {
+        return count;
+    }   //getCount
+
+    public double getOldestTime()
+    {
+        return count > 0? times[oldest]: 0.0;
+    }   //getOldestTime
+
+    public double getNewestTime()
+    {
+        return count > 0? times[index(count - 1)]: 0.0;
+    }   //getNewestTime
+
+    public void addPose(double time, double x, double y, double heading)
+    {
+        final String funcName = "addPose";
+
+        if (count > 0 && time <= times[index(count - 1)])
+        {
+            //
+            // Only keep strictly increasing timestamps.
+            //
+            return;
+        }
+
+        int i;
+        if (count < times.length)
+        {
+            i = index(count);
+            count++;
+        }
+        else
+        {
+            i = oldest;
+            oldest = (oldest + 1)%times.length;
+        }
+        times[i] = time;
+        xs[i] = x;
+        ys[i] = y;
+        headings[i] = heading;
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceInfo(
+                    funcName, "time=%f,x=%f,y=%f,heading=%f",
+                    time, x, y, heading);
+        }
+    }   //addPose
+
+    public boolean getPoseAt(double time, double[] pose)
+    {
+        final String funcName = "getPoseAt";
+        boolean inRange;
+
+        //
+        // Fills pose with {x, y, heading} at the given time. Returns false
+        // if the time is outside the recorded history, in which case the
+        // nearest end is used.
+        //
+        if (count == 0)
+        {
+            return false;
+        }
+
+        if (time <= times[oldest])
+        {
+            copyPose(oldest, pose);
+            inRange = time == times[oldest];
+        }
+        else if (time >= times[index(count - 1)])
+        {
+            copyPose(index(count - 1), pose);
+            inRange = time == times[index(count - 1)];
+        }
+        else
+        {
+            //
+            // times[index(low)] <= time < times[index(high)]
+            //
+            int low = 0;
+            int high = count - 1;
+            while (high - low > 1)
+            {
+                int mid = (low + high) >>> 1;
+                if (time < times[index(mid)])
+                {
+                    high = mid;
+                }
+                else
+                {
+                    low = mid;
+                }
+            }
+
+            int i0 = index(low);
+            int i1 = index(high);
+            double t = (time - times[i0])/(times[i1] - times[i0]);
+            pose[0] = xs[i0] + (xs[i1] - xs[i0])*t;
+            pose[1] = ys[i0] + (ys[i1] - ys[i0])*t;
+            pose[2] = headings[i0] + (headings[i1] - headings[i0])*t;
+            inRange = true;
+        }
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceInfo(
+                    funcName, "time=%f: x=%f,y=%f,heading=%f,inRange=%s",
+                    time, pose[0], pose[1], pose[2],
+                    Boolean.toString(inRange));
+        }
+
+        return inRange;
+    }   //getPoseAt
+
+    public void transform(
+            double fromX,
+            double fromY,
+            double fromHeading,
+            double toX,
+            double toY,
+            double toHeading)
+    {
+        final String funcName = "transform";
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceEnter(
+                    funcName, TrcDbgTrace.TraceLevel.API,
+                    "from=(%f,%f,%f),to=(%f,%f,%f)",
+                    fromX, fromY, fromHeading, toX, toY, toHeading);
+            dbgTrace.traceExit(funcName, TrcDbgTrace.TraceLevel.API);
+        }
+
+        //
+        // Moves every recorded pose by the rigid motion that takes the
+        // "from" pose onto the "to" pose, so the history stays consistent
+        // with a corrected field pose. Headings are clockwise degrees.
+        //
+        double deltaHeading = toHeading - fromHeading;
+        double theta = Math.toRadians(deltaHeading);
+        double cosTheta = Math.cos(theta);
+        double sinTheta = Math.sin(theta);
+
+        for (int n = 0; n < count; n++)
+        {
+            int i = index(n);
+            double dx = xs[i] - fromX;
+            double dy = ys[i] - fromY;
+            xs[i] = toX + dx*cosTheta + dy*sinTheta;
+            ys[i] = toY - dx*sinTheta + dy*cosTheta;
+            headings[i] += deltaHeading;
+        }
+    }   //transform
+
+    private int index(int n)
+    {
+        return (oldest + n)%times.length;
+    }   //index
+
+    private void copyPose(int i, double[] pose)
+    {
+        pose[0] = xs[i];
+        pose[1] = ys[i];
+        pose[2] = headings[i];
+    }   //copyPose
+
+}   //class TrcPoseHistory
@@ -0,0 +1,128 @@
+package trclib;
+
+public class TrcSimMotorPlant
+        implements TrcPidController.PidInput,
+                   TrcPidAutoTuner.PowerOutput,
+                   TrcLqrController.StateInput
+{
+    private static final String moduleName = "TrcSimMotorPlant";
+    private static final boolean debugEnabled = false;
+    private TrcDbgTrace dbgTrace = null;
+
+    //
+    // A DC motor driving a load, modeled as a first order velocity response
+    // with an optional transport delay on the power command:
+    //
+    //  dv/dt = (speedGain*power(t - deadTime) - v)/timeConstant
+    //  dx/dt = v
+    //
+    // It lets controllers and tuners be exercised without hardware by
+    // stepping it with update() from an offline loop.
+    //
+    private double speedGain;
+    private double timeConstant;
+    private double[] powerDelayLine;
+    private int delayIndex;
+    private double power;
+    private double position;
+    private double velocity;
+
+    public TrcSimMotorPlant(
+            final String instanceName,
+            double speedGain,
+            double timeConstant,
+            int deadTimeSteps)
+    {
+        if (debugEnabled)
+        {
+            dbgTrace = new TrcDbgTrace(
+                    moduleName + "." + instanceName,
+                    false,
+                    TrcDbgTrace.TraceLevel.API,
+                    TrcDbgTrace.MsgLevel.INFO);
+        }
+
+        if (timeConstant <= 0.0)
+        {
+            throw new IllegalArgumentException(
+                    "Time constant must be positive.");
+        }
+
+        if (deadTimeSteps < 0)
+        {
+            throw new IllegalArgumentException(
+                    "Dead time cannot be negative.");
+        }
+
+        this.speedGain = speedGain;
+        this.timeConstant = timeConstant;
+        powerDelayLine = deadTimeSteps > 0? new double[deadTimeSteps]: null;
+        reset();
+    }   //TrcSimMotorPlant
+
+    public void reset()
+    {
+        if (powerDelayLine != null)
+        {
+            for (int i = 0; i < powerDelayLine.length; i++)
+            {
+                powerDelayLine[i] = 0.0;
+            }
+        }
+        delayIndex = 0;
+        power = 0.0;
+        position = 0.0;
+        velocity = 0.0;
+    }   //reset
+
+    //
+    // Implements TrcPidAutoTuner.PowerOutput
+    //
+    public void setPower(double power)
+    {
+        this.power = power > 1.0? 1.0: power < -1.0? -1.0: power;
+    }   //setPower
+
+    public double getPower()
+    {
+        return power;
+    }   //getPower
+
+    public double getPosition()
+    {
+        return position;
+    }   //getPosition
+
+    public double getVelocity()
+    {
+        return velocity;
+    }   //getVelocity
+
+    public void update(double dt)
+    {
+        double appliedPower = power;
+
+        if (powerDelayLine != null)
+        {
+            appliedPower = powerDelayLine[delayIndex];
+            powerDelayLine[delayIndex] = power;
+            delayIndex++;
+            if (delayIndex == powerDelayLine.length)
+            {
+                delayIndex = 0;
+            }
+        }
+
+        velocity += (speedGain*appliedPower - velocity)*dt/timeConstant;
+        position += velocity*dt;
+    }   //update
+
+    //
+    // Implements TrcPidController.PidInput
+    //
+    public double getInput(TrcPidController pidCtrl)
+    {
+        return position;
+    }   //getInput
+
+}   //class TrcSimMotorPlant
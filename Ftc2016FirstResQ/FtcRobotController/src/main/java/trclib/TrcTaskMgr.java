@@ -3,6 +3,8 @@ package trclib;
 import java.util.ArrayList;
 import java.util.HashSet;
 
+import hallib.HalTimer;
+
 public class TrcTaskMgr
 {
     private static final String moduleName = "TrcTaskMgr";
@@ -87,6 +89,27 @@ public class TrcTaskMgr
 
     private static ArrayList<SubsystemTask> taskList =
             new ArrayList<SubsystemTask>();
+    private static long tickCount = 0;
+    private static double tickTime = 0.0;
+
+    //
+    // Per-tick caches only trust the tick count while it is moving. If no
+    // control cycle has started for this long (test mode, or a caller
+    // outside the robot loop), the tick is considered over and cached
+    // values are read again instead of freezing.
+    //
+    private static final double MAX_TICK_PERIOD = 0.1;
+
+    public static long getTickCount()
+    {
+        return tickCount;
+    }   //getTickCount
+
+    public static boolean isCurrentTick(long tick)
+    {
+        return tick == tickCount &&
+               HalTimer.getCurrentTime() - tickTime <= MAX_TICK_PERIOD;
+    }   //isCurrentTick
 
     public static boolean registerTask(
             String taskName,
@@ -158,6 +181,16 @@ public class TrcTaskMgr
     {
         final String funcName = "executeTaskType";
 
+        if (type == TaskType.PREPERIODIC_TASK)
+        {
+            //
+            // PrePeriodic tasks start every control cycle, count them so that
+            // per-cycle caches know when their data is stale.
+            //
+            tickCount++;
+            tickTime = HalTimer.getCurrentTime();
+        }
+
         for (int i = 0; i < taskList.size(); i++)
         {
             SubsystemTask subsystemTask = taskList.get(i);
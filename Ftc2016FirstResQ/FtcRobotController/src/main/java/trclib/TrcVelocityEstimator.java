@@ -0,0 +1,115 @@
+package trclib;
+
+public class TrcVelocityEstimator
+{
+    private static final String moduleName = "TrcVelocityEstimator";
+    private static final boolean debugEnabled = false;
+    private TrcDbgTrace dbgTrace = null;
+
+    //
+    // Estimates velocity from timestamped position samples. The last
+    // windowSize samples are kept in a ring buffer and the velocity is the
+    // least squares slope of position against time over them:
+    //
+    //  v = sum((t - tMean)*(x - xMean))/sum((t - tMean)^2)
+    //
+    // Using the real timestamps makes it immune to loop jitter, and
+    // fitting a line over several samples averages out the one count
+    // encoder quantization that makes a two point difference useless at
+    // low speed. The price is a lag of about half the window.
+    //
+    private double[] times;
+    private double[] positions;
+    private int head;
+    private int count;
+    private double velocity;
+
+    public TrcVelocityEstimator(final String instanceName, int windowSize)
+    {
+        if (debugEnabled)
+        {
+            dbgTrace = new TrcDbgTrace(
+                    moduleName + "." + instanceName,
+                    false,
+                    TrcDbgTrace.TraceLevel.API,
+                    TrcDbgTrace.MsgLevel.INFO);
+        }
+
+        if (windowSize < 2)
+        {
+            throw new IllegalArgumentException(
+                    "Window must hold at least two samples.");
+        }
+
+        times = new double[windowSize];
+        positions = new double[windowSize];
+        reset();
+    }   //TrcVelocityEstimator
+
+    public void reset()
+    {
+        head = 0;
+        count = 0;
+        velocity = 0.0;
+    }   //reset
+
+    public double getVelocity()
+    {
+        return velocity;
+    }   //getVelocity
+
+    public void addSample(double time, double position)
+    {
+        final String funcName = "addSample";
+        int size = times.length;
+
+        if (count > 0 && time <= times[(head + size - 1)%size])
+        {
+            //
+            // Same reading as the last one, nothing new to fit.
+            //
+            return;
+        }
+
+        times[head] = time;
+        positions[head] = position;
+        head = (head + 1)%size;
+        if (count < size)
+        {
+            count++;
+        }
+
+        if (count >= 2)
+        {
+            //
+            // Timestamps are large numbers, work relative to the newest
+            // sample to keep the sums well conditioned.
+            //
+            double sumT = 0.0, sumX = 0.0;
+            for (int i = 0; i < count; i++)
+            {
+                sumT += times[i] - time;
+                sumX += positions[i] - position;
+            }
+            double meanT = sumT/count;
+            double meanX = sumX/count;
+
+            double sumTT = 0.0, sumTX = 0.0;
+            for (int i = 0; i < count; i++)
+            {
+                double dt = times[i] - time - meanT;
+                sumTT += dt*dt;
+                sumTX += dt*(positions[i] - position - meanX);
+            }
+            velocity = sumTT > 0.0? sumTX/sumTT: 0.0;
+        }
+
+        if (debugEnabled)
+        {
+            dbgTrace.traceInfo(
+                    funcName, "time=%f,pos=%f,vel=%f",
+                    time, position, velocity);
+        }
+    }   //addSample
+
+}   //class TrcVelocityEstimator
@@ -0,0 +1,119 @@
+package trclib;
+
+import hallib.HalTimer;
+import hallib.HalVoltageSensor;
+
+public class TrcVoltageCompensator
+{
+    private static final String moduleName = "TrcVoltageCompensator";
+    private static final boolean debugEnabled = false;
+    private TrcDbgTrace dbgTrace = null;
+
+    private static final double MIN_VALID_VOLTAGE = 5.0;
+
+    //
+    // Motor power is a fraction of whatever the battery happens to give,
+    // so the same power is noticeably faster on a fresh 14V battery than
+    // on a tired 12V one. This scales power by nominal/actual voltage so
+    // a given power means the same motor voltage for the whole match:
+    //
+    //  compensated = power*nominalVoltage/batteryVoltage
+    //
+    // The battery voltage is read at most once per sample period (reading
+    // it is a bus transaction) and low pass filtered so the sag of a
+    // motor starting doesn't feed straight back into the power. Readings
+    // that make no sense (sensor not ready) are ignored. One instance can
+    // be shared by everything that drives motors.
+    //
+    private HalVoltageSensor sensor;
+    private double nominalVoltage;
+    private double samplePeriod;
+    private double filterWeight;
+    private double voltage;
+    private double nextSampleTime;
+    private boolean voltageValid;
+
+    public TrcVoltageCompensator(
+            final String instanceName,
+            HalVoltageSensor sensor,
+            double nominalVoltage,
+            double samplePeriod,
+            double filterWeight)
+    {
+        if (debugEnabled)
+        {
+            dbgTrace = new TrcDbgTrace(
+                    moduleName + "." + instanceName,
+                    false,
+                    TrcDbgTrace.TraceLevel.API,
+                    TrcDbgTrace.MsgLevel.INFO);
+        }
+
+        if (sensor == null)
+        {
+            throw new NullPointerException("Voltage sensor must be provided.");
+        }
+
+        if (nominalVoltage <= 0.0 || filterWeight <= 0.0 || filterWeight > 1.0)
+        {
+            throw new IllegalArgumentException(
+                    "Nominal voltage must be positive and filter weight in (0, 1].");
+        }
+
+        this.sensor = sensor;
+        this.nominalVoltage = nominalVoltage;
+        this.samplePeriod = samplePeriod;
+        this.filterWeight = filterWeight;
+        voltage = nominalVoltage;
+        nextSampleTime = 0.0;
+        voltageValid = false;
+    }   //TrcVoltageCompensator
+
+    public double getNominalVoltage()
+    {
+        return nominalVoltage;
+    }   //getNominalVoltage
+
+    public double getVoltage()
+    {
+        final String funcName = "getVoltage";
+        double currTime = HalTimer.getCurrentTime();
+
+        if (currTime >= nextSampleTime)
+        {
+            double reading = sensor.getVoltage();
+            nextSampleTime = currTime + samplePeriod;
+
+            if (reading >= MIN_VALID_VOLTAGE)
+            {
+                //
+                // Start from the first good reading rather than filtering
+                // up from the nominal voltage.
+                //
+                voltage = voltageValid?
+                        voltage + (reading - voltage)*filterWeight: reading;
+                voltageValid = true;
+            }
+
+            if (debugEnabled)
+            {
+                dbgTrace.traceInfo(
+                        funcName, "reading=%f,voltage=%f", reading, voltage);
+            }
+        }
+
+        return voltage;
+    }   //getVoltage
+
+    public double getScale()
+    {
+        return nominalVoltage/getVoltage();
+    }   //getScale
+
+    public double compensate(double power)
+    {
+        power *= getScale();
+        return power > 1.0? 1.0: power < -1.0? -1.0: power;
+    }   //compensate
+
+}   //class TrcVoltageCompensator
@@ -0,0 +1,100 @@
+package trclib;
+
+public class TrcLqrSimulation
+{
+    //
+    // Desktop harness comparing a hand tuned PID controller with an LQR
+    // controller whose gains come from solveMotorGains(), both driving the
+    // same TrcSimMotorPlant to the same target. It prints how long each
+    // takes to get on target and how far it overshoots. Lives in the test
+    // tree so it is not built into the robot app, run it with
+    // "java trclib.TrcLqrSimulation [target]".
+    //
+    // Each controller is run twice with the same exit rule for both: once
+    // where it must hold within tolerance for the settling time, and once
+    // where it may also stop early when slower than RATE_TOLERANCE.
+    // isOnTarget() times the settling window with HalTimer, so the loop
+    // runs in real time.
+    //
+    private static final double SPEED_GAIN = 100.0;
+    private static final double TIME_CONSTANT = 0.15;
+    private static final int DEAD_TIME_STEPS = 2;
+    private static final double PERIOD = 0.02;
+    private static final double TIMEOUT = 6.0;
+    private static final double TOLERANCE = 1.0;
+    private static final double SETTLING_TIME = 0.5;
+    private static final double RATE_TOLERANCE = 2.0;
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        final double target = args.length > 0? Double.parseDouble(args[0]): 30.0;
+        double[] k = TrcLqrController.solveMotorGains(
+                SPEED_GAIN, TIME_CONSTANT, PERIOD, 1.0, 0.0, 200.0);
+        System.out.printf("LQR gains: kPos=%f, kVel=%f%n", k[0], k[1]);
+
+        for (int i = 0; i < 4; i++)
+        {
+            boolean rateExit = i >= 2;
+            TrcSimMotorPlant plant = new TrcSimMotorPlant(
+                    "sim", SPEED_GAIN, TIME_CONSTANT, DEAD_TIME_STEPS);
+            TrcController controller;
+            if (i%2 == 0)
+            {
+                TrcPidController pidCtrl = new TrcPidController(
+                        rateExit? "PID rate exit": "PID settling",
+                        0.1, 0.0, 0.4, 0.0,
+                        TOLERANCE, SETTLING_TIME, plant,
+                        TrcPidController.PIDCTRLO_ABS_SETPT);
+                if (rateExit)
+                {
+                    pidCtrl.setRateTolerance(RATE_TOLERANCE, 1.0);
+                }
+                controller = pidCtrl;
+            }
+            else
+            {
+                //
+                // A negative velocity tolerance never matches, leaving only
+                // the settling time.
+                //
+                controller = new TrcLqrController(
+                        rateExit? "LQR rate exit": "LQR settling",
+                        k[0], k[1], 0.0,
+                        TOLERANCE, rateExit? RATE_TOLERANCE: -1.0,
+                        SETTLING_TIME, plant,
+                        TrcPidController.PIDCTRLO_ABS_SETPT);
+            }
+            run(controller, plant, target);
+        }
+    }   //main
+
+    private static void run(
+            TrcController controller, TrcSimMotorPlant plant, double target)
+            throws InterruptedException
+    {
+        double maxPos = 0.0;
+        double time = 0.0;
+        boolean onTarget = false;
+
+        controller.setTarget(target);
+        while (time < TIMEOUT)
+        {
+            maxPos = Math.max(maxPos, plant.getPosition());
+            if (controller.isOnTarget())
+            {
+                onTarget = true;
+                break;
+            }
+            plant.setPower(controller.getOutput());
+            plant.update(PERIOD);
+            time += PERIOD;
+            Thread.sleep((long)(PERIOD*1000.0));
+        }
+
+        System.out.printf(
+                "%s: %s at %.2fs, position=%.2f, overshoot=%.2f%n",
+                controller.getName(), onTarget? "on target": "timed out",
+                time, plant.getPosition(), Math.max(0.0, maxPos - target));
+    }   //run
+
+}   //class TrcLqrSimulation
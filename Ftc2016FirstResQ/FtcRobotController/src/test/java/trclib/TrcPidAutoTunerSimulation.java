@@ -0,0 +1,210 @@
+package trclib;
+
+public class TrcPidAutoTunerSimulation
+{
+    //
+    // Desktop check of TrcPidAutoTuner against TrcSimMotorPlant. For a few
+    // plants it runs the relay experiment, then finds the real ultimate
+    // gain and period of the same discrete plant by bisecting on a P-only
+    // loop, so the relay estimate can be compared with the true values.
+    // Finally the Ziegler-Nichols and Tyreus-Luyben gains are applied to a
+    // TrcPidController and a step response is run. Lives in the test tree
+    // so it is not built into the robot app, run it with
+    // "java trclib.TrcPidAutoTunerSimulation".
+    //
+    private static final double PERIOD = 0.02;
+    private static final double RELAY_POWER = 0.5;
+    private static final double HYSTERESIS = 0.05;
+    private static final int NUM_CYCLES = 4;
+    private static final double STEP = 50.0;
+    private static final double STEP_TIME = 6.0;
+    private static final double SETTLE_BAND = 0.02;
+
+    //
+    // {speedGain, timeConstant, deadTimeSteps}
+    //
+    private static final double[][] PLANTS =
+            {
+                    {100.0, 0.15, 2.0},
+                    {100.0, 0.30, 1.0},
+                    {60.0, 0.10, 4.0}
+            };
+
+    public static void main(String[] args)
+    {
+        for (int i = 0; i < PLANTS.length; i++)
+        {
+            double speedGain = PLANTS[i][0];
+            double timeConstant = PLANTS[i][1];
+            int deadTimeSteps = (int)PLANTS[i][2];
+            TrcSimMotorPlant plant = new TrcSimMotorPlant(
+                    "sim", speedGain, timeConstant, deadTimeSteps);
+            TrcPidController pidCtrl = new TrcPidController(
+                    "pid", 0.0, 0.0, 0.0, 0.0, 0.5, 0.2, plant,
+                    TrcPidController.PIDCTRLO_ABS_SETPT);
+            TrcPidAutoTuner tuner = new TrcPidAutoTuner("tuner", pidCtrl, plant);
+
+            System.out.printf(
+                    "plant gain=%.0f, tau=%.2fs, dead time=%d ticks%n",
+                    speedGain, timeConstant, deadTimeSteps);
+
+            tuner.start(10.0, RELAY_POWER, HYSTERESIS, NUM_CYCLES, 30.0, null);
+            double time = 0.0;
+            while (tuner.getState() == TrcPidAutoTuner.State.RUNNING)
+            {
+                tuner.update(time);
+                plant.update(PERIOD);
+                time += PERIOD;
+            }
+            tuner.cancel();
+
+            if (tuner.getState() != TrcPidAutoTuner.State.DONE)
+            {
+                System.out.printf("  relay test %s%n", tuner.getState());
+                continue;
+            }
+
+            double[] ultimate = findUltimate(speedGain, timeConstant, deadTimeSteps);
+            System.out.printf(
+                    "  relay Ku=%.4f Tu=%.3fs, true Ku=%.4f Tu=%.3fs (%+.0f%%, %+.0f%%)%n",
+                    tuner.getUltimateGain(), tuner.getUltimatePeriod(),
+                    ultimate[0], ultimate[1],
+                    100.0*(tuner.getUltimateGain()/ultimate[0] - 1.0),
+                    100.0*(tuner.getUltimatePeriod()/ultimate[1] - 1.0));
+
+            for (TrcPidAutoTuner.TuningRule rule: TrcPidAutoTuner.TuningRule.values())
+            {
+                double[] gains = tuner.getProposedGains(rule);
+                tuner.applyGains(rule);
+                plant.reset();
+                stepResponse(pidCtrl, plant, rule.toString(), gains);
+            }
+        }
+    }   //main
+
+    private static double[] findUltimate(
+            double speedGain, double timeConstant, int deadTimeSteps)
+    {
+        //
+        // Bisect on the proportional gain that is just on the edge of
+        // sustained oscillation, and measure the period there from the
+        // zero crossings of the error.
+        //
+        double low = 0.0;
+        double high = 10.0;
+        for (int iter = 0; iter < 40; iter++)
+        {
+            double kP = (low + high)/2.0;
+            if (isGrowing(speedGain, timeConstant, deadTimeSteps, kP, null))
+            {
+                high = kP;
+            }
+            else
+            {
+                low = kP;
+            }
+        }
+
+        double[] period = new double[1];
+        isGrowing(speedGain, timeConstant, deadTimeSteps, high, period);
+        return new double[]{high, period[0]};
+    }   //findUltimate
+
+    private static boolean isGrowing(
+            double speedGain, double timeConstant, int deadTimeSteps,
+            double kP, double[] period)
+    {
+        //
+        // A small step keeps the power out of the plant's clamp so the loop
+        // stays linear: a stable loop never asks for more than the initial
+        // kP*target, so asking for several times that means it is growing.
+        // Otherwise compare the error peaks early and late in the run.
+        //
+        final int numTicks = 3000;
+        TrcSimMotorPlant plant = new TrcSimMotorPlant(
+                "ref", speedGain, timeConstant, deadTimeSteps);
+        double target = 0.01;
+        double earlyPeak = 0.0;
+        double latePeak = 0.0;
+        double prevError = target;
+        double firstCrossing = -1.0;
+        double lastCrossing = -1.0;
+        int numCrossings = 0;
+
+        for (int i = 0; i < numTicks; i++)
+        {
+            double error = target - plant.getPosition();
+            if (period == null && Math.abs(error) > 5.0*target)
+            {
+                return true;
+            }
+            plant.setPower(kP*error);
+            plant.update(PERIOD);
+
+            if (i >= numTicks/10 && i < 2*numTicks/10)
+            {
+                earlyPeak = Math.max(earlyPeak, Math.abs(error));
+            }
+            else if (i >= 9*numTicks/10)
+            {
+                latePeak = Math.max(latePeak, Math.abs(error));
+            }
+
+            if (i >= numTicks/2 && prevError < 0.0 && error >= 0.0)
+            {
+                //
+                // Interpolate the upward zero crossing between ticks.
+                //
+                double crossing = (i - 1 + prevError/(prevError - error))*PERIOD;
+                if (firstCrossing < 0.0)
+                {
+                    firstCrossing = crossing;
+                }
+                else
+                {
+                    numCrossings++;
+                }
+                lastCrossing = crossing;
+            }
+            prevError = error;
+        }
+
+        if (period != null)
+        {
+            period[0] = numCrossings > 0?
+                    (lastCrossing - firstCrossing)/numCrossings: 0.0;
+        }
+
+        return latePeak > earlyPeak;
+    }   //isGrowing
+
+    private static void stepResponse(
+            TrcPidController pidCtrl, TrcSimMotorPlant plant,
+            String name, double[] gains)
+    {
+        double maxPos = 0.0;
+        double settleTime = 0.0;
+
+        pidCtrl.setTarget(STEP);
+        for (double time = 0.0; time < STEP_TIME; time += PERIOD)
+        {
+            double pos = plant.getPosition();
+            maxPos = Math.max(maxPos, pos);
+            if (Math.abs(STEP - pos) > SETTLE_BAND*STEP)
+            {
+                settleTime = time + PERIOD;
+            }
+            plant.setPower(pidCtrl.getOutput());
+            plant.update(PERIOD);
+        }
+
+        System.out.printf(
+                "  %-15s Kp=%.4f Ki=%.5f Kd=%.4f: overshoot=%.1f%%, " +
+                "2%% settling=%s, final=%.2f%n",
+                name, gains[0], gains[1], gains[2],
+                100.0*Math.max(0.0, maxPos - STEP)/STEP,
+                settleTime < STEP_TIME? String.format("%.2fs", settleTime): "none",
+                plant.getPosition());
+    }   //stepResponse
+
+}   //class TrcPidAutoTunerSimulation